@@ -0,0 +1,24 @@
+package android.os;
+
+import java.io.File;
+
+/**
+ * Stands in for the android environment when the utils package runs on a
+ * desktop JVM.  "External storage" is a directory under java.io.tmpdir, or
+ * the one named by the mymediaplayer.storage system property.
+ *
+ * @author Saul Howard
+ *
+ */
+public final class Environment {
+
+	public static File getExternalStorageDirectory() {
+
+		String path = System.getProperty("mymediaplayer.storage");
+
+		if (path == null)
+			path = new File(System.getProperty("java.io.tmpdir"), "mymediaplayer-benchmarks").getPath();
+
+		return new File(path);
+	}
+}
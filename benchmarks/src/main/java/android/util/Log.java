@@ -0,0 +1,47 @@
+package android.util;
+
+/**
+ * Stands in for the android logger when the utils package runs on a desktop
+ * JVM.  Logging is dropped so it doesn't skew the measurements; set the
+ * mymediaplayer.log system property to print it.
+ *
+ * @author Saul Howard
+ *
+ */
+public final class Log {
+
+	private static final boolean ENABLED = Boolean.getBoolean("mymediaplayer.log");
+
+	public static int i(String tag, String msg) {
+		return print("I", tag, msg, null);
+	}
+
+	public static int w(String tag, String msg) {
+		return print("W", tag, msg, null);
+	}
+
+	public static int w(String tag, String msg, Throwable tr) {
+		return print("W", tag, msg, tr);
+	}
+
+	public static int e(String tag, String msg) {
+		return print("E", tag, msg, null);
+	}
+
+	public static int e(String tag, String msg, Throwable tr) {
+		return print("E", tag, msg, tr);
+	}
+
+	private static int print(String level, String tag, String msg, Throwable tr) {
+
+		if (!ENABLED)
+			return 0;
+
+		System.err.println(level + "/" + tag + ": " + msg);
+
+		if (tr != null)
+			tr.printStackTrace();
+
+		return 0;
+	}
+}
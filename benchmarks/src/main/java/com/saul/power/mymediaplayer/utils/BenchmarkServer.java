@@ -0,0 +1,56 @@
+package com.saul.power.mymediaplayer.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A loopback HTTP server that answers every request with the same block of
+ * random bytes, so downloads can be measured without a network in the way.
+ *
+ * @author Saul Howard
+ *
+ */
+class BenchmarkServer {
+
+	private final HttpServer server;
+	private final byte[] payload;
+
+	BenchmarkServer(int size) throws IOException {
+
+		payload = new byte[size];
+		new Random(42).nextBytes(payload);
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+
+				exchange.getResponseHeaders().set("Content-Type", "video/mp4");
+				exchange.getResponseHeaders().set("ETag", "\"benchmark\"");
+				exchange.sendResponseHeaders(200, payload.length);
+
+				OutputStream body = exchange.getResponseBody();
+				body.write(payload);
+				body.close();
+			}
+		});
+		server.start();
+	}
+
+	String url(String path) {
+
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/" + path;
+	}
+
+	void stop() {
+
+		server.stop(0);
+	}
+}
@@ -0,0 +1,70 @@
+package com.saul.power.mymediaplayer.utils;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Deriving the cache filename from a url.  The hashCode and split based
+ * naming the cache started out with is kept here as the baseline.
+ *
+ * @author Saul Howard
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheKeyBenchmark {
+
+	@Param({
+		"http://videos.hd-trailers.net/man-of-steel-uk-trailer-480p.mp4",
+		"https://cdn.example.com:443/v1/assets/7f3a/stream/video-1080p.mp4?token=a81b2c3d4e5f&expires=1700000000#t=30"
+	})
+	public String url;
+
+	@Benchmark
+	public String key() {
+
+		return CacheKeys.key(url);
+	}
+
+	@Benchmark
+	public String extension() {
+
+		return CacheKeys.extension(url);
+	}
+
+	@Benchmark
+	public String filename() {
+
+		return CacheUtils.getFilename(url);
+	}
+
+	@Benchmark
+	public String legacyFilename() {
+
+		return "resource_" + Math.abs(url.hashCode()) + legacyExtension(url);
+	}
+
+	private static String legacyExtension(String url) {
+
+		String[] parts = url.split("[.]");
+
+		if (parts.length > 1 && parts[(parts.length - 1)].length() <= 4)
+			return "." + parts[(parts.length - 1)];
+
+		return "";
+	}
+}
@@ -0,0 +1,84 @@
+package com.saul.power.mymediaplayer.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of a cache hit, both straight from the DiskCache index and through
+ * CacheUtils.cacheResource the way the app asks for a video.
+ *
+ * @author Saul Howard
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheLookupBenchmark {
+
+	@Param({ "100", "10000" })
+	public int entries;
+
+	private DiskCache cache;
+	private String[] keys;
+	private int next;
+
+	private String url;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+
+		File directory = new File(FileIO.getExternalDirectory(), "lookup-benchmark");
+		directory.mkdirs();
+		new File(directory, CacheIndex.FILENAME).delete();
+
+		cache = new DiskCache(directory, Long.MAX_VALUE);
+		keys = new String[entries];
+
+		for (int i = 0; i < entries; i++) {
+
+			keys[i] = CacheKeys.key("http://example.com/video-" + i + ".mp4");
+
+			CacheEntry entry = new CacheEntry(keys[i], keys[i] + ".mp4");
+			entry.size = 1024;
+			entry.created = System.currentTimeMillis();
+			entry.lastAccess = entry.created;
+
+			cache.put(entry);
+		}
+
+		// a real file behind the url so cacheResource answers from the cache
+		url = "http://example.com/cached.mp4";
+		File file = new File(FileIO.getExternalDirectory(), CacheUtils.getFilename(url));
+		FileIO.saveToDisc(new byte[1024], file.getName());
+		CacheUtils.register(CacheKeys.key(url), url, file, null);
+	}
+
+	@Benchmark
+	public CacheEntry diskCacheGet() {
+
+		return cache.get(keys[next++ % entries]);
+	}
+
+	@Benchmark
+	public String cacheResourceHit() {
+
+		return CacheUtils.cacheResource(url, false);
+	}
+}
@@ -0,0 +1,76 @@
+package com.saul.power.mymediaplayer.utils;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing and reading whole files through FileIO.saveToDisc and
+ * FileIO.retrieveFromDisc.
+ *
+ * @author Saul Howard
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DiscBenchmark {
+
+	private static final String WRITTEN = "disc-benchmark-write";
+	private static final String READ = "disc-benchmark-read";
+
+	// retrieveFromDisc refuses anything over FileIO.MAX_RETRIEVE_SIZE
+	@Param({ "65536", "1048576", "4194304" })
+	public int size;
+
+	@Param({ "NONE", "ON_COMPLETE" })
+	public FsyncPolicy fsync;
+
+	private byte[] data;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+
+		data = new byte[size];
+		new Random(42).nextBytes(data);
+
+		FileIO.setFsyncPolicy(fsync);
+		FileIO.saveToDisc(data, READ);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+
+		FileIO.deleteFromDisc(WRITTEN);
+		FileIO.deleteFromDisc(READ);
+		FileIO.setFsyncPolicy(FsyncPolicy.ON_COMPLETE);
+	}
+
+	@Benchmark
+	public String saveToDisc() {
+
+		return FileIO.saveToDisc(data, WRITTEN);
+	}
+
+	@Benchmark
+	public byte[] retrieveFromDisc() {
+
+		return FileIO.retrieveFromDisc(READ);
+	}
+}
@@ -0,0 +1,93 @@
+package com.saul.power.mymediaplayer.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to download a file from a loopback server into the cache directory
+ * with the copy loop the app started out with, across buffer sizes.  See
+ * TransferBenchmark for the pooled direct buffer path the downloads use now.
+ *
+ * @author Saul Howard
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DownloadBenchmark {
+
+	@Param({ "1024", "8192", "65536", "262144" })
+	public int bufferSize;
+
+	@Param({ "8388608" })
+	public int payload;
+
+	private BenchmarkServer server;
+	private String url;
+	private File target;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+
+		server = new BenchmarkServer(payload);
+		url = server.url("clip.mp4");
+		target = new File(FileIO.getExternalDirectory(), "download-benchmark.mp4");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+
+		server.stop();
+		FileIO.deleteFromDisc(target.getName());
+	}
+
+	/**
+	 * The byte array loop from the original loadRemoteData.
+	 */
+	@Benchmark
+	public long streamCopy() throws IOException {
+
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		InputStream input = connection.getInputStream();
+		FileOutputStream output = new FileOutputStream(target);
+
+		byte[] buffer = new byte[bufferSize];
+		long total = 0;
+		int read;
+
+		try {
+			while ((read = input.read(buffer)) > 0) {
+				output.write(buffer, 0, read);
+				total += read;
+			}
+		} finally {
+			input.close();
+			output.close();
+			connection.disconnect();
+		}
+
+		return total;
+	}
+}
@@ -0,0 +1,78 @@
+package com.saul.power.mymediaplayer.utils;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A complete FileIO.loadRemoteData from a loopback server: the resume marker,
+ * the partial file, the sync and the rename.  The checksummed variant adds the
+ * inline CRC32 the cache takes of every download.
+ *
+ * @author Saul Howard
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoadRemoteDataBenchmark {
+
+	private static final String FILENAME = "load-benchmark.mp4";
+
+	@Param({ "1048576", "8388608" })
+	public int payload;
+
+	@Param({ "NONE", "ON_COMPLETE" })
+	public FsyncPolicy fsync;
+
+	private BenchmarkServer server;
+	private String url;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+
+		server = new BenchmarkServer(payload);
+		url = server.url("clip.mp4");
+
+		FileIO.setFsyncPolicy(fsync);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+
+		server.stop();
+		FileIO.deleteFromDisc(FILENAME);
+		FileIO.setFsyncPolicy(FsyncPolicy.ON_COMPLETE);
+	}
+
+	@Benchmark
+	public String loadRemoteData() {
+
+		return FileIO.loadRemoteData(url, FILENAME);
+	}
+
+	@Benchmark
+	public long loadRemoteDataChecksummed() {
+
+		Validators validators = new Validators();
+		FileIO.loadRemoteData(url, FILENAME, validators);
+
+		return validators.checksum;
+	}
+}
@@ -0,0 +1,79 @@
+package com.saul.power.mymediaplayer.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to download a file from a loopback server through FileIO.transfer,
+ * which copies through BufferPool.BUFFER_SIZE direct buffers.  Compare with
+ * DownloadBenchmark at the same payload.
+ *
+ * @author Saul Howard
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark {
+
+	@Param({ "8388608" })
+	public int payload;
+
+	private BenchmarkServer server;
+	private String url;
+	private File target;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+
+		server = new BenchmarkServer(payload);
+		url = server.url("clip.mp4");
+		target = new File(FileIO.getExternalDirectory(), "transfer-benchmark.mp4");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+
+		server.stop();
+		FileIO.deleteFromDisc(target.getName());
+	}
+
+	@Benchmark
+	public long channelTransfer() throws IOException {
+
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		InputStream input = connection.getInputStream();
+		RandomAccessFile output = new RandomAccessFile(target, "rw");
+
+		try {
+			output.setLength(0);
+			return FileIO.transfer(input, output.getChannel(), 0, -1, null);
+		} finally {
+			input.close();
+			output.close();
+			connection.disconnect();
+		}
+	}
+}
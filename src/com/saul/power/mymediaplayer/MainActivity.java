@@ -1,5 +1,8 @@
 package com.saul.power.mymediaplayer;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import android.app.Activity;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
@@ -10,19 +13,41 @@ import android.util.Log;
 import android.widget.RelativeLayout;
 
 import com.saul.power.mymediaplayer.MyMediaPlayer.OnMediaPlayerStateChange;
+import com.saul.power.mymediaplayer.utils.CacheProxy;
+import com.saul.power.mymediaplayer.utils.CacheRequest;
 import com.saul.power.mymediaplayer.utils.CacheUtils;
+import com.saul.power.mymediaplayer.utils.Connections;
 import com.saul.power.mymediaplayer.utils.DialogUtils;
+import com.saul.power.mymediaplayer.utils.DownloadProgress;
+import com.saul.power.mymediaplayer.utils.DownloadProgress.OnProgressListener;
+import com.saul.power.mymediaplayer.utils.DownloadScheduler;
+import com.saul.power.mymediaplayer.utils.Prefetcher;
 
 public class MainActivity extends Activity {
 
+	// the remote locations of the videos that play after the first one
+	public static final String EXTRA_UPCOMING = "com.saul.power.mymediaplayer.UPCOMING";
+
 	private final String TAG = "MainActivity";
 
 	private RelativeLayout videoLayout;
-	private String path;
+	
+	// the remote location of the video and the path actually handed to the player
+	private String url, path;
 	private MyMediaPlayer myMediaPlayer;
 	protected boolean downloading = false;
 	
-	private AsyncTask<Void, Void, Boolean> downloader;
+	private AsyncTask<Void, Integer, Boolean> downloader;
+	
+	// the video kept in the cache while it is watched, see pinVideo
+	private String pinned;
+	
+	// the videos that play after this one, their first seconds are fetched ahead of time
+	private List<String> upcoming = new ArrayList<String>();
+	private Prefetcher prefetcher;
+	
+	// the upcoming videos as the player plays them, looked up with the video
+	private List<String> playlist = new ArrayList<String>();
 	
 	private OnMediaPlayerStateChange mediaListener = new OnMediaPlayerStateChange() {
 		
@@ -51,10 +76,37 @@ public class MainActivity extends Activity {
 			} else if (state.equals(MyMediaPlayer.STATE_START)) {
 				
 				// the media player did start playing the video
+				prefetcher.setQueue(upcoming);
 				
 			} else if (state.equals(MyMediaPlayer.STATE_END)) {
 
 				// the media player did finish playing the video
+				DownloadScheduler.setBuffering(false);
+				
+			} else if (state.equals(MyMediaPlayer.STATE_BUFFERING_START)) {
+				
+				// background downloads make way until the video plays again
+				DownloadScheduler.setBuffering(true);
+				
+			} else if (state.equals(MyMediaPlayer.STATE_BUFFERING_END) || state.equals(MyMediaPlayer.STATE_RELEASED)) {
+				
+				DownloadScheduler.setBuffering(false);
+				
+			} else if (state.equals(MyMediaPlayer.STATE_SEEK)) {
+				
+				// the download moves to where the video continues from
+				CacheProxy.getInstance().prioritize(url, Long.parseLong(message), myMediaPlayer.getDuration());
+				
+			} else if (state.equals(MyMediaPlayer.STATE_NEXT)) {
+				
+				// the next video in the playlist took over, prefetch the ones after it
+				if (!upcoming.isEmpty())
+					url = upcoming.remove(0);
+				
+				pinVideo(url);
+				CacheProxy.getInstance().setPlaying(url);
+				path = message;
+				prefetcher.setQueue(upcoming);
 			}
 		}
 	};
@@ -67,7 +119,25 @@ public class MainActivity extends Activity {
         
         videoLayout = (RelativeLayout) findViewById(R.id.video);
 
-        path = "http://videos.hd-trailers.net/man-of-steel-uk-trailer-480p.mp4";
+        url = "http://videos.hd-trailers.net/man-of-steel-uk-trailer-480p.mp4";
+        path = url;
+        
+        List<String> extra = getIntent().getStringArrayListExtra(EXTRA_UPCOMING);
+        
+        if (extra != null)
+        	upcoming.addAll(extra);
+        
+        // fetch large videos over up to 4 connections in 1MB ranges
+        CacheUtils.setSegmentedDownloads(4, 1024 * 1024);
+        
+        // keep the cache under 512MB, favoring videos that are watched again
+        CacheUtils.setCacheSize(CacheUtils.DEFAULT_CACHE_SIZE, true);
+        
+        // prefetching gets a quarter of the connection while the video is downloading
+        DownloadScheduler.setBackgroundShare(0.25f);
+        
+        // the first 10 seconds of the next 2 videos at a time, at most 32MB in all
+        prefetcher = new Prefetcher(2, Prefetcher.headBytesFor(10, 2000000), 32 * 1024 * 1024);
         
 		configureVideo();
     }
@@ -107,6 +177,12 @@ public class MainActivity extends Activity {
 		}
 		
 		cancelDownload();
+		
+		pinVideo(null);
+		
+		prefetcher.shutdown();
+		
+		CacheProxy.getInstance().stop();
 	}
 
     private void cancelDownload() {
@@ -122,20 +198,50 @@ public class MainActivity extends Activity {
 		
 		downloading = true;
 		
-		DialogUtils.showProgress(this, "Retrieving Cached Video...");
+		pinVideo(url);
+		
+		DialogUtils.showProgressBar(this, "Retrieving Cached Video...");
 		
-		downloader = new AsyncTask<Void, Void, Boolean>() {
+		downloader = new AsyncTask<Void, Integer, Boolean>() {
     		
 			@Override
 			protected Boolean doInBackground(Void... params) {
 				
-				// set to true to re-download cached content
+				// set to true to check cached content with the server even if it is fresh
 				boolean refresh = false;
 				
-				path = CacheUtils.cacheResource(path, refresh);
+				CacheRequest request = CacheUtils.requestResource(url, refresh, null);
+				
+				request.getProgress().addListener(new OnProgressListener() {
+					
+					@Override
+					public void onDownloadProgress(DownloadProgress progress) {
+						publishProgress(progress.getPercent());
+					}
+					
+					@Override
+					public void onDownloadFinished(DownloadProgress progress) {
+						Log.i(TAG, "Download finished: " + progress);
+						Log.i(TAG, "Connections: " + Connections.getStats());
+					}
+				});
+				
+				try {
+					path = request.get();
+				} catch (InterruptedException e) {
+					path = "";
+				}
+				
+				playlist = getPlaylist();
 				
     			return true;
 			}
+			
+			@Override
+			protected void onProgressUpdate(Integer... percent) {
+				
+				DialogUtils.setProgress(percent[0]);
+			}
     		
     		@Override
     		protected void onPostExecute(Boolean success) {
@@ -149,10 +255,59 @@ public class MainActivity extends Activity {
 		downloader.execute();
 	}
 	
+	/**
+	 * Looks up the urls the player streams the video and the playlist from through the cache.
+	 * That waits for the cache index to load and starts the proxy, so it is
+	 * done off the UI thread.
+	 */
+	private void proxyVideo() {
+		
+		downloading = true;
+		
+		pinVideo(url);
+		
+		downloader = new AsyncTask<Void, Integer, Boolean>() {
+			
+			@Override
+			protected Boolean doInBackground(Void... params) {
+				
+				// the playlist is prepared ahead of time, in the background
+				CacheProxy.getInstance().setPlaying(url);
+				path = CacheProxy.getInstance().getProxyUrl(url);
+				playlist = getPlaylist();
+				
+				return true;
+			}
+			
+			@Override
+			protected void onPostExecute(Boolean success) {
+				
+				downloading = false;
+				loadHomeVideo();
+			}
+			
+			@Override
+			protected void onCancelled() {
+				
+				downloading = false;
+			}
+		};
+		downloader.execute();
+	}
+	
 	private void configureVideo() {
 		
+		// Set to play the video while it is cached in the background
+		boolean progressive = true;
+		
 		// Set to always cache video, to just stream set to false
-		if (true) {
+		if (progressive) {
+			
+			cancelDownload();
+			
+			proxyVideo();
+			
+		} else if (true) {
 			
 			cacheVideo();
 			
@@ -164,6 +319,22 @@ public class MainActivity extends Activity {
 		}
 	}
 	
+	/**
+	 * Keeps the video being watched in the cache, and lets go of the one
+	 * watched before.  Otherwise a video the cache ranks low could be evicted
+	 * as soon as it is downloaded.
+	 */
+	private void pinVideo(String video) {
+		
+		if (pinned != null)
+			CacheUtils.unpin(pinned);
+		
+		pinned = video;
+		
+		if (video != null)
+			CacheUtils.pin(video);
+	}
+	
 	private void loadHomeVideo() {
 		
     	Log.i(TAG, "loadHomeVideo " + (myMediaPlayer != null));
@@ -179,6 +350,7 @@ public class MainActivity extends Activity {
     		boolean autoplay = true;
     		
     		myMediaPlayer = new MyMediaPlayer(this, videoLayout, path, mediaListener, hideControls, loopVideo, autoplay);
+    		myMediaPlayer.setPlaylist(playlist);
     	
     	} else {
     		
@@ -186,6 +358,20 @@ public class MainActivity extends Activity {
     	}
     }
 	
+	/**
+	 * @return the upcoming videos as the player will play them, through the
+	 * cache.  Nothing is downloaded until the player asks for them.
+	 */
+	private List<String> getPlaylist() {
+		
+		List<String> paths = new ArrayList<String>();
+		
+		for (String next : upcoming)
+			paths.add(CacheProxy.getInstance().getProxyUrl(next));
+		
+		return paths;
+	}
+	
 	private void exit(int code) {
 
 		String msg = "The video could not be played";
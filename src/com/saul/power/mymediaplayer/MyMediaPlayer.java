@@ -1,6 +1,11 @@
 package com.saul.power.mymediaplayer;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.app.Activity;
 import android.content.res.Resources;
@@ -11,6 +16,7 @@ import android.media.MediaPlayer.OnBufferingUpdateListener;
 import android.media.MediaPlayer.OnCompletionListener;
 import android.media.MediaPlayer.OnPreparedListener;
 import android.media.MediaPlayer.OnVideoSizeChangedListener;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.util.Log;
 import android.view.Display;
@@ -35,12 +41,18 @@ import android.widget.TextView;
  * and the associated player controls.  Feedback is sent to the parent class via the 
  * state change listener.
  * 
+ * Where the player is in its lifecycle is a single PlaybackState that only
+ * moves along valid transitions, atomically.  play, pause and seekTo may be
+ * called from any thread: they move the state and command the MediaPlayer
+ * straight away, and the controls catch up on the UI thread.
+ * 
  * @author Saul Howard
  *
  */
 public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateListener,
 									  OnPreparedListener, OnVideoSizeChangedListener, SurfaceHolder.Callback,
-									  MediaPlayer.OnErrorListener, MediaPlayer.OnInfoListener {
+									  MediaPlayer.OnErrorListener, MediaPlayer.OnInfoListener,
+									  MediaPlayer.OnSeekCompleteListener {
 	
 	private static final String TAG = "MyMediaPlayer";
 
@@ -49,16 +61,49 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
 	public static final String STATE_DONE = "done";
 	public static final String STATE_ERROR = "error";
 	public static final String STATE_RELEASED = "released";
+	public static final String STATE_BUFFERING_START = "buffering_start";
+	public static final String STATE_BUFFERING_END = "buffering_end";
+	public static final String STATE_SEEK = "seek";
+	public static final String STATE_NEXT = "next";
+	
+	// how often the progress bar and timers move while the video plays
+	private static final long PROGRESS_INTERVAL = 100;
+	
+	// how long before the end of a video the next one in the playlist is prepared
+	private static final long NEXT_PREPARE_LEAD = 15000;
+	
+	// MediaPlayer.setNextMediaPlayer, which is only there from API 16 on
+	private static final Method setNextMediaPlayer = findSetNextMediaPlayer();
 	
 	private Activity activity;
 	
-    private int orgWidth, orgHeight, curPosition, duration = 0;
+    private int orgWidth, orgHeight, duration = 0;
+    
+    // written by commands from any thread
+    private volatile int curPosition;
+    
+    // set once the player that was at curPosition is released, a new one
+    // starts from the beginning and is moved there when it plays
+    private volatile boolean restorePosition;
     
     // used to keep track of when the last action was taken
     // to hide the control panel
-	private long lastActionTime = 0L;
+	private volatile long lastActionTime = 0L;
     
-    private MediaPlayer mMediaPlayer;
+    private volatile MediaPlayer mMediaPlayer;
+    
+    private final AtomicReference<PlaybackState> state = new AtomicReference<PlaybackState>(PlaybackState.IDLE);
+    
+    // the state the controls were last drawn for, only touched on the UI thread
+    private PlaybackState renderedState;
+    
+    // set while a refresh of the controls is posted to the UI thread
+    private final AtomicBoolean refreshPending = new AtomicBoolean();
+    
+    // the next video in the playlist, prepared while the current one plays
+    private MediaPlayer nextPlayer;
+    private boolean nextPrepared, nextChained, awaitingNext;
+    private LinkedList<String> playlist = new LinkedList<String>();
     
 	private SurfaceView surface;
     private SurfaceHolder holder;
@@ -75,18 +120,14 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
 	// the resource object for the activity
 	private Resources resource;
 	
-	// keeps track of whether the MediaPlayer is paused or not
-	private boolean isPaused;
+	// fast forward and rewind
+	private TrickPlay trickPlay;
 	
-	private boolean started;
-
-	// keeps track of whether the MediaPlayer is being ffwd or rwd
-	private boolean isFF, isRR;
+	// seeks after the timeline while it is dragged
+	private Scrubber scrubber;
 
-	private boolean mIsVideoReadyToBePlayed = false;
     private boolean hideControls = false;
     private boolean loopVideo = false;
-    private boolean mWaiting = false;
     private boolean fullScreen = false;
     private boolean autoplay = false;
 	
@@ -94,6 +135,42 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
     
     private OnMediaPlayerStateChange onMediaPlayerStateChange;
     
+    // the one pending tick of the playback clock, see startPlayProgressUpdater
+    private boolean ticking;
+    
+	private final Runnable progressTicker = new Runnable() {
+		
+		@Override
+		public void run() {
+			
+			ticking = false;
+			startPlayProgressUpdater();
+		}
+	};
+	
+	private final Runnable controlsRefresher = new Runnable() {
+		
+		@Override
+		public void run() {
+			
+			refreshPending.set(false);
+			renderControls();
+		}
+	};
+	
+	private final Runnable nextPreparer = new Runnable() {
+		
+		@Override
+		public void run() {
+			
+			prepareNext();
+		}
+	};
+	
+	// the timers are written in place, and only when the second shown changes
+	private final char[] passedText = new char[8], leftText = new char[9];
+	private int passedShown = -1, leftShown = -1;
+    
 	private OnTouchListener touchListener = new OnTouchListener() {
 		
 		@Override
@@ -137,7 +214,7 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
             	
             	lastActionTime = SystemClock.elapsedRealtime();
             	timers(progress);
-            	seekTo(progress);
+            	scrubber.moveTo(progress);
             }
         }
 
@@ -145,15 +222,13 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
 		public void onStartTrackingTouch(SeekBar seekBar) {
 			
 			if (mMediaPlayer != null)
-				pausePlay();
-			
+				scrubber.start();
 		}
 
 		@Override
 		public void onStopTrackingTouch(SeekBar seekBar) {
 			
-			if (mMediaPlayer != null)
-				pausePlay();
+			scrubber.finish();
 		}
     };
     
@@ -216,7 +291,6 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
     	this.path = path;
     	
     	this.curPosition = 0;
-    	this.started = false;
     	
         setupAnimations();
         setupView();
@@ -225,10 +299,6 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
 	
 	public void resetMediaPlayer() {
 		
-		if (mMediaPlayer != null && mMediaPlayer.isPlaying()) {
-			mMediaPlayer.pause();
-		}
-		
 		resetPlayer();
 	}
 	
@@ -266,6 +336,8 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
 		
         // initialize the surface viewer
         surface = (SurfaceView) videoContainer.findViewById(R.id.surface);
+        trickPlay = new TrickPlay(this, surface);
+        scrubber = new Scrubber(this, trickPlay, surface);
 
         //initialize UI items that need to be manipulated
 		controlPanel = videoContainer.findViewById(R.id.bottom_panel);
@@ -293,16 +365,15 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
 	
 	private void prepMediaPlayer() {
 
-        mWaiting = true;
+		// a released player starts over, waiting for its surface
+		if (state.get() == PlaybackState.RELEASED)
+			transition(PlaybackState.IDLE);
+		
+		trickPlay.cancel();
 
         // set the display to indeterminate until video is ready
 		configureView();
 		
-    	// initialize variables
-        isPaused = true;
-        isFF = false;
-        isRR = false;
-        
         resource = activity.getResources();
         
         activity.getWindow().setFormat(PixelFormat.UNKNOWN);
@@ -353,22 +424,23 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
 			@Override
 			public void onClick(View v) {
 				
-				if (onMediaPlayerStateChange != null)
-					onMediaPlayerStateChange.onMediaPlayerStateChange(STATE_DONE, null);
+				notifyStateChange(STATE_DONE, null);
 			}
 		});
 	}
     
 	/**
-     * When called it checks to verify if the background process has completed.
-     * This is indicated by the mWaiting variable.  Once mWaiting is true the
-     * main screen and content are rendered
+     * When called it checks to verify if the video is still being prepared.
+     * Until it isn't the waiting indicator is shown, after that the main
+     * screen and content are rendered
      */
     private void configureView() {
     	
     	Log.i(TAG, "configureView");
+    	
+    	PlaybackState current = state.get();
 
-        if (mWaiting) {
+        if (current == PlaybackState.IDLE || current == PlaybackState.PREPARING) {
         	
             // We're waiting, so show the waiting indicator
             waitingIndicator.setVisibility(View.VISIBLE);
@@ -378,10 +450,6 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
         } else {
         	
             // We're not waiting, so hide the indicator
-        	// In rare cases when videos are changed rapidly the waiting indicator may be null.
-        	if (waitingIndicator == null)
-        		return;
-        	
             waitingIndicator.setVisibility(View.GONE);
             waitingText.setVisibility(View.GONE);
             showControls();
@@ -398,6 +466,9 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
 			controlPanel.startAnimation(fadeIn);
 			done.setVisibility(View.VISIBLE);
 			done.startAnimation(fadeIn);
+			
+			// the clock stopped while the controls were hidden
+			startPlayProgressUpdater();
 		}
 	}
 	
@@ -407,7 +478,7 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
 	 */
 	private void hideControls() {
 		
-		if (controlPanel.getVisibility() == View.VISIBLE && (!isPaused || hideControls)) {
+		if (controlPanel.getVisibility() == View.VISIBLE && (state.get() != PlaybackState.PAUSED || hideControls)) {
 
 			Log.i(TAG, "Hiding controls");
 			lastActionTime = SystemClock.elapsedRealtime();
@@ -418,78 +489,224 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
 	
 	private void resetPlayer() {
 		
-		started = false;
-		isPaused = true;
+		MediaPlayer player = mMediaPlayer;
 		
-		showControls();
+		if (player == null || transition(PlaybackState.READY) == null)
+			return;
+		
+		trickPlay.cancel();
 		
-		playButton.setBackgroundDrawable(resource.getDrawable(R.drawable.play_button_int));
+		if (player.isPlaying())
+			player.pause();
+		
+		showControls();
 		
 		seekTo(0);
 	}
 	
 	/**
-	 * Moves to the position passed to by the method
+	 * Moves to the position passed to by the method.  Safe to call from any thread.
 	 * 
 	 * @param position
 	 */
-	private void seekTo(int position) {
+	public void seekTo(int position) {
 		
-		if (mMediaPlayer != null && mIsVideoReadyToBePlayed) {
-			
-	    	lastActionTime = SystemClock.elapsedRealtime();
-
-	    	mMediaPlayer.seekTo(position);
-	    	
-			startPlayProgressUpdater();
-		}
+		MediaPlayer player = mMediaPlayer;
+		
+		if (player == null || !state.get().isPrepared())
+			return;
+		
+    	lastActionTime = SystemClock.elapsedRealtime();
+    	
+    	// lets the cache fetch the new position before the player asks for it
+    	notifyStateChange(STATE_SEEK, String.valueOf(position));
+    	
+    	try {
+    		player.seekTo(position);
+    	} catch (IllegalStateException e) {
+    		// released by another thread in the meantime
+    		return;
+    	}
+    	
+    	curPosition = position;
+    	restorePosition = false;
+    	
+		refreshControls();
 	}
 	
+	/**
+	 * Pauses the video if it is playing, otherwise plays it.
+	 */
 	public void pausePlay() {
 
-		if (mMediaPlayer == null)
-			return;
+		if (state.get() == PlaybackState.PLAYING)
+			pause();
+		else
+			play();
+	}
+	
+	/**
+	 * Starts the video, or resumes it where it was paused.  Safe to call from any thread.
+	 * 
+	 * @return false if the video isn't in a state it can play from
+	 */
+	public boolean play() {
+		
+		MediaPlayer player = mMediaPlayer;
+		
+		if (player == null)
+			return false;
+		
+		PlaybackState previous = transition(PlaybackState.PLAYING);
+		
+		if (previous == null)
+			return false;
+		
+    	lastActionTime = SystemClock.elapsedRealtime();
+    	trickPlay.cancel();
+		
+		if (previous != PlaybackState.PAUSED)
+			notifyStateChange(STATE_START, null);
+		
+		try {
+			
+			player.start();
+			
+			// a paused or seeked player is already where it should be
+			if (restorePosition) {
+				
+				restorePosition = false;
+				
+				if (curPosition > 0)
+					player.seekTo(curPosition);
+			}
+			
+		} catch (IllegalStateException e) {
+			// released by another thread in the meantime
+			return false;
+		}
+		
+		refreshControls();
+		
+		return true;
+	}
+	
+	/**
+	 * Pauses the video.  Safe to call from any thread.
+	 * 
+	 * @return false if the video wasn't playing
+	 */
+	public boolean pause() {
+		
+		MediaPlayer player = mMediaPlayer;
+		
+		if (player == null || transition(PlaybackState.PAUSED) == null)
+			return false;
 		
     	lastActionTime = SystemClock.elapsedRealtime();
+    	trickPlay.cancel();
     	
-		// pauses the MediaPlayer or continues playing if paused
-		if (mMediaPlayer.isPlaying()) {
+		try {
 			
-			showControls();
+			player.pause();
 			
-			playButton.setBackgroundDrawable(resource.getDrawable(R.drawable.play_button_int));
-			mMediaPlayer.pause();
+			// resuming picks up from here
+			curPosition = player.getCurrentPosition();
 			
-			isPaused = true;
-			isFF = false;
-			isRR = false;
+		} catch (IllegalStateException e) {
+			// released by another thread in the meantime
+			return false;
+		}
+		
+		refreshControls();
+		
+		return true;
+	}
+	
+	/**
+	 * Moves the player to the next state if that is a valid move from the state it is in.
+	 * 
+	 * @return the state it moved from, null if the move isn't allowed
+	 */
+	private PlaybackState transition(PlaybackState next) {
+		
+		while (true) {
 			
-		} else if (mIsVideoReadyToBePlayed) {
+			PlaybackState current = state.get();
 			
-			if (!started) {
-
-		        if (onMediaPlayerStateChange != null)
-					onMediaPlayerStateChange.onMediaPlayerStateChange(STATE_START, null);
-		        
-				started = true;
+			if (!current.canMoveTo(next)) {
+				Log.w(TAG, "Ignoring a move from " + current + " to " + next);
+				return null;
 			}
 			
-			playButton.setBackgroundDrawable(resource.getDrawable(R.drawable.pause_button_int));
-			mMediaPlayer.start();
+			if (state.compareAndSet(current, next))
+				return current;
+		}
+	}
+	
+	/**
+	 * Tells the listener about a change of state on the UI thread, where the
+	 * MediaPlayer callbacks tell it too, whichever thread made the change.
+	 */
+	private void notifyStateChange(final String change, final String message) {
+		
+		if (onMediaPlayerStateChange == null)
+			return;
+		
+		if (Looper.myLooper() == Looper.getMainLooper()) {
+			onMediaPlayerStateChange.onMediaPlayerStateChange(change, message);
+			return;
+		}
+		
+		surface.post(new Runnable() {
+			
+			@Override
+			public void run() {
+				
+				if (onMediaPlayerStateChange != null)
+					onMediaPlayerStateChange.onMediaPlayerStateChange(change, message);
+			}
+		});
+	}
+	
+	/**
+	 * Brings the controls up to date with the state, on the UI thread.  Calls
+	 * from other threads share one pending refresh.
+	 */
+	private void refreshControls() {
+		
+		if (Looper.myLooper() == Looper.getMainLooper())
+			renderControls();
+		else if (refreshPending.compareAndSet(false, true))
+			surface.post(controlsRefresher);
+	}
+	
+	private void renderControls() {
+		
+		PlaybackState current = state.get();
+		
+		if (current != renderedState) {
 			
-			if (curPosition > 0)
-				mMediaPlayer.seekTo(curPosition);
+			boolean playing = current == PlaybackState.PLAYING;
 			
-			startPlayProgressUpdater();
+			playButton.setBackgroundDrawable(resource.getDrawable(playing ? R.drawable.pause_button_int : R.drawable.play_button_int));
 			
-			isPaused = false;
+			// out of the way while the video plays, back when it is paused
+			if (playing)
+				hideControls();
+			else if (current == PlaybackState.PAUSED)
+				showControls();
 			
-			hideControls();
+			renderedState = current;
 		}
+		
+		startPlayProgressUpdater();
+		scheduleNext();
 	}
     
     /**
-     * Puts the MediaPlayer into fast forward
+     * Puts the MediaPlayer into fast forward, each press doubles the speed
+     * until it goes back to playing normally
      * 
      * @param view
      */
@@ -497,21 +714,14 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
     	
     	if (mMediaPlayer != null) {
     		
-    		if (!isFF) {
-    			
-    			isFF = true;
-    			isRR = false;
-	    		fastFwdRwd();
-	    		
-    		} else {
-    			
-    			isFF = false;
-    		}
+    		lastActionTime = SystemClock.elapsedRealtime();
+    		trickPlay.scan(1);
     	}
     }
     
     /**
-     * Puts the MediaPlayer into rewind
+     * Puts the MediaPlayer into rewind, each press doubles the speed
+     * until it goes back to playing normally
      * 
      * @param view
      */
@@ -519,47 +729,8 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
     	
     	if (mMediaPlayer != null) {
     		
-			if (!isRR) {
-				
-    			isRR = true;
-    			isFF = false;
-	    		fastFwdRwd();
-	    		
-    		} else {
-    			
-    			isRR = false;
-    		}
-    	}
-    }
-    
-    /**
-     * Starts the MediaPlayer into rewind or fast forward as called
-     */
-    private void fastFwdRwd () {
-    	
-    	if (mMediaPlayer != null) {
-    		
-    		int direction = 1000;
-    		
-    		if (isRR)
-    			direction = -1000;
-    		
-    		if ((curPosition + direction) < 0 || (curPosition + direction) > duration || (!isFF && !isRR)) {
-    			
-    			isFF = false;
-    			isRR = false;
-    			
-    		} else {
-    			
-    			seekTo(curPosition + direction);
-    		
-	    		Runnable seeker = new Runnable() {
-			        public void run() {
-			        	fastFwdRwd();
-					}
-			    };
-			    surface.postDelayed(seeker,250);
-    		}
+    		lastActionTime = SystemClock.elapsedRealtime();
+    		trickPlay.scan(-1);
     	}
     }
 
@@ -575,8 +746,11 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
     @Override
     public void surfaceDestroyed(SurfaceHolder surfaceholder) {
 
-        mIsVideoReadyToBePlayed = false;
         Log.i(TAG, "surfaceDestroyed called");
+        
+        // the player can't outlive its surface, a new one is prepared when the surface is back
+        if (releasePlayers())
+        	transition(PlaybackState.IDLE);
     }
 
     /**
@@ -593,9 +767,11 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
 	@Override
 	public void onBufferingUpdate(MediaPlayer mp, int percent) {
 		
+		if (mp != mMediaPlayer)
+			return;
+		
 		int pos = ((int) (((float)percent / 100.f) * (float)timeline.getMax()));
 		timeline.setSecondaryProgress(pos);
-		startPlayProgressUpdater();
 	}
 
 	/**
@@ -606,11 +782,30 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
     	
         Log.i(TAG, "onCompletion called for " + mediaPlayer.toString());
         
-        started = false;
+        if (mediaPlayer != mMediaPlayer || transition(PlaybackState.COMPLETED) == null)
+        	return;
         
-        if (onMediaPlayerStateChange != null)
-			onMediaPlayerStateChange.onMediaPlayerStateChange(STATE_END, null);
+        notifyStateChange(STATE_END, null);
 		
+        if (!playlist.isEmpty()) {
+        	
+        	// the next video takes over, as soon as it is ready if it isn't yet
+        	prepareNext();
+        	
+        	if (nextPlayer != null) {
+        		
+        		if (nextPrepared) {
+        			playNext();
+        		} else {
+        			awaitingNext = true;
+        			transition(PlaybackState.PREPARING);
+        			configureView();
+        		}
+        		
+        		return;
+        	}
+        }
+        
 		if (!loopVideo)
 			resetPlayer();
     }
@@ -618,21 +813,59 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
     @Override
 	public boolean onError(MediaPlayer mp, int what, int extra) {
     	
+		if (mp == nextPlayer) {
+			
+			// the playlist stops after the current video instead
+			Log.w(TAG, "Could not prepare the next video: ERROR " + what);
+			
+			boolean awaiting = awaitingNext;
+			releaseNext();
+			
+			if (awaiting) {
+				resetPlayer();
+				configureView();
+			}
+			
+			return true;
+		}
+		
 		Log.i(TAG, "There has been an error with the MediaPlayer: ERROR " + what);
+		
+		if (mp != mMediaPlayer || transition(PlaybackState.ERROR) == null)
+			return true;
         
-		if (onMediaPlayerStateChange != null)
-			onMediaPlayerStateChange.onMediaPlayerStateChange(STATE_ERROR, "" + extra);
+		notifyStateChange(STATE_ERROR, "" + extra);
 		
-		releaseMediaPlayer();
+		// unless the listener already restarted or released it
+		if (state.get() == PlaybackState.ERROR)
+			releaseMediaPlayer();
 		
 		return true;
 	}
 
+	@Override
+	public void onSeekComplete(MediaPlayer mp) {
+		
+		if (mp == mMediaPlayer) {
+			trickPlay.onSeekComplete();
+			scrubber.onSeekComplete();
+		}
+	}
+
 	@Override
 	public boolean onInfo(MediaPlayer mp, int what, int extra) {
 		
 		Log.i(TAG, "INFO Message: " + what);
 		
+		if (onMediaPlayerStateChange != null && mp == mMediaPlayer) {
+			
+			// playback stalled waiting for data or picked up again
+			if (what == MediaPlayer.MEDIA_INFO_BUFFERING_START)
+				onMediaPlayerStateChange.onMediaPlayerStateChange(STATE_BUFFERING_START, null);
+			else if (what == MediaPlayer.MEDIA_INFO_BUFFERING_END)
+				onMediaPlayerStateChange.onMediaPlayerStateChange(STATE_BUFFERING_END, null);
+		}
+		
 		return false;
 	}
 
@@ -643,9 +876,13 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
     @Override
     public void onPrepared(MediaPlayer mediaplayer) {
         
-        mIsVideoReadyToBePlayed = true;
+        if (mediaplayer == nextPlayer) {
+        	
+        	onNextPrepared();
+        	return;
+        }
         
-		if (mMediaPlayer != null)
+        if (mediaplayer == mMediaPlayer && transition(PlaybackState.READY) != null)
 			prepareVideoPlayback();
     }
 
@@ -655,7 +892,7 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
 	@Override
     public void onVideoSizeChanged(MediaPlayer mp, int width, int height) {
         
-        if (mIsVideoReadyToBePlayed)
+        if (state.get().isPrepared() && mp == mMediaPlayer)
 			prepareVideoPlayback(width, height);
     }
 	
@@ -665,13 +902,13 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
 	 */
 	private void prepareVideoPlayback() {
 
-        mWaiting = false;
-        
 		orgWidth = mMediaPlayer.getVideoWidth();
 		orgHeight = mMediaPlayer.getVideoHeight();
 		duration = mMediaPlayer.getDuration();
 		
         timeline.setMax(duration);
+        
+        trickPlay.setPath(path);
 		
 		prepareVideoPlayback(orgWidth, orgHeight);
 	}
@@ -696,8 +933,8 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
 
 		startPlayProgressUpdater();
 		
-		if (autoplay && isPaused)
-			pausePlay();
+		if (autoplay && state.get() == PlaybackState.READY)
+			play();
     }
     
     public void restartMediaPlayer() {
@@ -710,31 +947,51 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
      */
     public void releaseMediaPlayer() {
 
-        mIsVideoReadyToBePlayed = false;
-    	started = false;
+    	releasePlayers();
+    	
+    	if (state.get() != PlaybackState.RELEASED)
+    		transition(PlaybackState.RELEASED);
     	
-        if (mMediaPlayer != null) {
-        	
-        	Log.i(TAG, "Media Player RELEASED");
-            mMediaPlayer.release();
-            mMediaPlayer = null;
-            
-            if (onMediaPlayerStateChange != null)
-				onMediaPlayerStateChange.onMediaPlayerStateChange(STATE_RELEASED, null);
-        }
-        
         surface.setVisibility(View.GONE);
         container.setVisibility(View.VISIBLE);
         
         hideControls();
         
-        mWaiting = false;
-        
         configureView();
         
         videoContainer.setVisibility(View.GONE);
     }
     
+    /**
+     * Releases the MediaPlayer and the one prepared for the next video.
+     * 
+     * @return true if there was a player to release
+     */
+    private boolean releasePlayers() {
+    	
+    	surface.removeCallbacks(progressTicker);
+    	ticking = false;
+    	trickPlay.cancel();
+    	scrubber.cancel();
+    	
+    	releaseNext();
+    	
+    	MediaPlayer player = mMediaPlayer;
+    	
+    	if (player == null || transition(PlaybackState.RELEASED) == null)
+    		return false;
+    	
+    	Log.i(TAG, "Media Player RELEASED");
+    	
+    	mMediaPlayer = null;
+    	player.release();
+    	restorePosition = true;
+    	
+    	notifyStateChange(STATE_RELEASED, null);
+    	
+    	return true;
+    }
+    
     /**
      * Starts a streaming MediaPlayer in the case that there is no external storage
      * to download a buffer file.
@@ -743,8 +1000,10 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
     	
     	Log.i(TAG, "startMediaPlayerStreaming");
 
-		mIsVideoReadyToBePlayed = false;
-    	isPaused = true;
+		if (transition(PlaybackState.PREPARING) == null)
+			return;
+		
+		configureView();
         
         try {
 	            
@@ -760,25 +1019,212 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
             mMediaPlayer.setOnVideoSizeChangedListener(this);
             mMediaPlayer.setOnErrorListener(this);
             mMediaPlayer.setOnInfoListener(this);
+            mMediaPlayer.setOnSeekCompleteListener(this);
             mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
             
         } catch (IOException e) {
         	
-        	if (onMediaPlayerStateChange != null)
-				onMediaPlayerStateChange.onMediaPlayerStateChange(STATE_ERROR, e.getMessage());
+        	notifyStateChange(STATE_ERROR, e.getMessage());
         	
         	releaseMediaPlayer();
         }   
     }
     
+    /**
+     * Sets the videos that play after the current one.  Each is prepared in
+     * the background near the end of the one before and takes over as soon as
+     * it completes, on API 16 and up without a single dropped frame.
+     * 
+     * @param paths the videos in the order they play, an empty list ends playback after this one
+     */
+    public void setPlaylist(List<String> paths) {
+    	
+    	playlist = new LinkedList<String>(paths);
+    	
+    	// whatever was prepared may not be next any more
+    	releaseNext();
+    	scheduleNext();
+    }
+    
+    /**
+     * Prepares the next video once the current one is close to its end.
+     */
+    private void scheduleNext() {
+    	
+    	surface.removeCallbacks(nextPreparer);
+    	
+    	if (mMediaPlayer == null || !state.get().isPrepared() || playlist.isEmpty() || nextPlayer != null)
+    		return;
+    	
+    	// starting earlier would take bandwidth the current video still needs
+    	long delay = duration - mMediaPlayer.getCurrentPosition() - NEXT_PREPARE_LEAD;
+    	
+    	surface.postDelayed(nextPreparer, Math.max(0, delay));
+    }
+    
+    private void prepareNext() {
+    	
+    	if (mMediaPlayer == null || playlist.isEmpty() || nextPlayer != null)
+    		return;
+    	
+    	String next = playlist.getFirst();
+    	
+    	Log.i(TAG, "Preparing the next video: " + next);
+    	
+    	nextPlayer = new MediaPlayer();
+    	nextPrepared = false;
+    	nextChained = false;
+    	
+    	try {
+    		
+    		nextPlayer.setDataSource(next);
+    		nextPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+    		nextPlayer.setOnBufferingUpdateListener(this);
+    		nextPlayer.setOnCompletionListener(this);
+    		nextPlayer.setOnPreparedListener(this);
+    		nextPlayer.setOnVideoSizeChangedListener(this);
+    		nextPlayer.setOnErrorListener(this);
+    		nextPlayer.setOnInfoListener(this);
+    		nextPlayer.setOnSeekCompleteListener(this);
+    		nextPlayer.prepareAsync();
+    		
+    	} catch (IOException e) {
+    		
+    		Log.w(TAG, "Could not prepare the next video: " + next, e);
+    		releaseNext();
+    	}
+    }
+    
+    /**
+     * Hands the next video to the framework to start the moment the current
+     * one ends, where the platform supports it.
+     */
+    private void onNextPrepared() {
+    	
+    	nextPrepared = true;
+    	
+    	if (awaitingNext) {
+    		playNext();
+    		return;
+    	}
+    	
+    	if (setNextMediaPlayer == null || mMediaPlayer == null || loopVideo)
+    		return;
+    	
+    	try {
+    		
+    		nextPlayer.setDisplay(holder);
+    		nextPlayer.setVolume((float)volume.getProgress()/100, (float)volume.getProgress()/100);
+    		setNextMediaPlayer.invoke(mMediaPlayer, nextPlayer);
+    		nextChained = true;
+    		
+    	} catch (Exception e) {
+    		
+    		// handed over on completion instead
+    		Log.w(TAG, "Could not chain the next video", e);
+    		nextPlayer.setDisplay(null);
+    	}
+    }
+    
+    /**
+     * Switches to the prepared next video.  A chained player has already
+     * started by itself, otherwise it takes over the surface and starts here.
+     */
+    private void playNext() {
+    	
+    	MediaPlayer previous = mMediaPlayer;
+    	
+    	mMediaPlayer = nextPlayer;
+    	path = playlist.removeFirst();
+    	
+    	if (!nextChained) {
+    		
+    		previous.setDisplay(null);
+    		mMediaPlayer.setDisplay(holder);
+    		mMediaPlayer.start();
+    	}
+    	
+    	nextPlayer = null;
+    	nextPrepared = false;
+    	nextChained = false;
+    	awaitingNext = false;
+    	
+    	previous.release();
+    	
+    	Log.i(TAG, "Playing the next video: " + path);
+    	
+    	// straight on from the end of the last video, or after waiting for this one
+    	if (state.get() == PlaybackState.PREPARING)
+    		transition(PlaybackState.READY);
+    	
+    	transition(PlaybackState.PLAYING);
+    	curPosition = 0;
+    	
+    	notifyStateChange(STATE_NEXT, path);
+    	
+    	prepareVideoPlayback();
+    	refreshControls();
+    }
+    
+    private void releaseNext() {
+    	
+    	surface.removeCallbacks(nextPreparer);
+    	
+    	if (nextPlayer == null)
+    		return;
+    	
+    	// unchain it so the current video doesn't start it after all
+    	if (nextChained && mMediaPlayer != null) {
+    		
+    		try {
+    			setNextMediaPlayer.invoke(mMediaPlayer, (Object) null);
+    		} catch (Exception e) {
+    			Log.w(TAG, "Could not unchain the next video", e);
+    		}
+    	}
+    	
+    	nextPlayer.release();
+    	nextPlayer = null;
+    	nextPrepared = false;
+    	nextChained = false;
+    	awaitingNext = false;
+    }
+    
+    private static Method findSetNextMediaPlayer() {
+    	
+    	try {
+    		return MediaPlayer.class.getMethod("setNextMediaPlayer", MediaPlayer.class);
+    	} catch (NoSuchMethodException e) {
+    		return null;
+    	}
+    }
+    
+    /**
+     * Updates the controls with the current position straight away and keeps
+     * them updating while the video plays with the controls showing.  However
+     * often it is called there is only ever one tick pending, and it stops by
+     * itself once the video is paused or the controls are hidden.
+     */
+    private void startPlayProgressUpdater() {
+    	
+    	updatePlayProgress();
+    	
+    	if (!ticking && mMediaPlayer != null && state.get() == PlaybackState.PLAYING && controlPanel.getVisibility() == View.VISIBLE) {
+    		
+    		ticking = true;
+    		surface.postDelayed(progressTicker, PROGRESS_INTERVAL);
+    	}
+    }
+    
     /**
      * Keeps track of the progress of the video file playing and
      * the last time an action was made in order to hide the video
      * control panel
      */
-    private void startPlayProgressUpdater() {
+    private void updatePlayProgress() {
     	
-    	if (mMediaPlayer != null) {
+    	// the timeline follows the finger while it is dragged, not the seeks behind it
+    	if (mMediaPlayer != null && !scrubber.isScrubbing()) {
     		
     		// updates current position
     		curPosition = mMediaPlayer.getCurrentPosition();
@@ -805,18 +1251,6 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
 	    	// checks to see if the movie control panel needs to be hidden
 	    	if (lastActionTime > 0 && SystemClock.elapsedRealtime() - lastActionTime > 5000)
 				hideControls();
-	    	
-	    	// calls every second to update the UI
-				
-			Runnable notification = new Runnable() {
-				
-		        public void run() {
-		        	
-		        	startPlayProgressUpdater();
-				}
-		    };
-		    
-		    surface.postDelayed(notification, 100);
     	}
     }
     
@@ -841,30 +1275,45 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
      */
     private void timers(int millis) {
     	
-    	// gets the runtime of the video file
-    	int end = duration;
+    	// whole seconds passed and left, against the runtime of the video file
+    	int passed = Math.max(0, millis / 1000);
+    	int left = Math.max(0, (duration - millis) / 1000);
     	
-    	// converts the total time to hours, minutes and seconds
-    	int hours = millis/3600000;
-    	int minutes = millis/60000;
-    	int seconds = millis/1000;
+    	if (passed != passedShown) {
+    		
+    		passedShown = passed;
+    		formatTime(passedText, 0, passed);
+    		timePassed.setText(passedText, 0, passedText.length);
+    	}
     	
-    	// formats the time accordingly
-    	timePassed.setText(String.format("%02d:%02d:%02d",
-    		    hours,
-    		    minutes - (hours*60),
-    		    (seconds) - (minutes*60)
-    		));
+    	if (left != leftShown) {
+    		
+    		leftShown = left;
+    		leftText[0] = '-';
+    		formatTime(leftText, 1, left);
+    		timeLeft.setText(leftText, 0, leftText.length);
+    	}
+    }
+    
+    /**
+     * Writes the seconds into the buffer in hour:minute:second format
+     * without allocating anything.
+     * 
+     * @param offset where in the buffer the eight characters go
+     */
+    private static void formatTime(char[] buffer, int offset, int seconds) {
     	
-    	hours = (end - millis)/3600000;
-    	minutes = (end - millis)/60000;
-    	seconds = (end - millis)/1000;
+    	writeTwoDigits(buffer, offset, Math.min(seconds / 3600, 99));
+    	buffer[offset + 2] = ':';
+    	writeTwoDigits(buffer, offset + 3, seconds / 60 % 60);
+    	buffer[offset + 5] = ':';
+    	writeTwoDigits(buffer, offset + 6, seconds % 60);
+    }
+    
+    private static void writeTwoDigits(char[] buffer, int offset, int value) {
     	
-    	timeLeft.setText("-"+String.format("%02d:%02d:%02d",
-    		    hours,
-    		    minutes - (hours*60),
-    		    (seconds) - (minutes*60)
-    		));
+    	buffer[offset] = (char) ('0' + value / 10);
+    	buffer[offset + 1] = (char) ('0' + value % 10);
     }
     
     /**
@@ -952,12 +1401,37 @@ public class MyMediaPlayer implements OnCompletionListener, OnBufferingUpdateLis
     	return size;
     }
 	
+	/**
+	 * @return the length of the video in milliseconds, 0 until it is prepared
+	 */
+	public int getDuration() {
+		return duration;
+	}
+	
+	/**
+	 * @return the position the video was last at or sent to, in milliseconds
+	 */
+	int getPosition() {
+		return curPosition;
+	}
+	
+	public PlaybackState getState() {
+		return state.get();
+	}
+	
 	public boolean isPaused() {
-		return isPaused;
+		return state.get() != PlaybackState.PLAYING;
 	}
 
+	/**
+	 * Pauses or plays the video.  Safe to call from any thread.
+	 */
 	public void setPaused(boolean isPaused) {
-		this.isPaused = isPaused;
+		
+		if (isPaused)
+			pause();
+		else
+			play();
 	}
 		
 	// Define our custom Listener interface
@@ -0,0 +1,68 @@
+package com.saul.power.mymediaplayer;
+
+/**
+ * The states a MyMediaPlayer moves through, from creating its MediaPlayer to
+ * releasing it, and the moves allowed between them.
+ *
+ * @author Saul Howard
+ *
+ */
+public enum PlaybackState {
+
+	// waiting for a surface to play on
+	IDLE,
+
+	// the MediaPlayer is preparing, or the next video in the playlist is
+	PREPARING,
+
+	// prepared and not started yet, or reset to the start
+	READY,
+
+	PLAYING,
+	PAUSED,
+
+	// reached the end of the video
+	COMPLETED,
+
+	ERROR,
+	RELEASED;
+
+	/**
+	 * @return true if a player in this state may move to the next one
+	 */
+	public boolean canMoveTo(PlaybackState next) {
+
+		// any player can be released or fail, and a released one only ever starts over
+		if (next == RELEASED)
+			return this != RELEASED;
+		if (next == ERROR)
+			return this != ERROR && this != RELEASED && this != IDLE;
+
+		switch (this) {
+		case IDLE:
+			return next == PREPARING;
+		case PREPARING:
+			return next == READY;
+		case READY:
+			return next == PLAYING;
+		case PLAYING:
+			return next == PAUSED || next == COMPLETED || next == READY;
+		case PAUSED:
+			return next == PLAYING || next == READY;
+		case COMPLETED:
+			return next == PLAYING || next == PREPARING || next == READY;
+		case RELEASED:
+			return next == IDLE;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @return true if the MediaPlayer is prepared and takes commands
+	 */
+	public boolean isPrepared() {
+
+		return this == READY || this == PLAYING || this == PAUSED || this == COMPLETED;
+	}
+}
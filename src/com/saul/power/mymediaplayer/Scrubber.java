@@ -0,0 +1,188 @@
+package com.saul.power.mymediaplayer;
+
+import android.util.Log;
+import android.view.View;
+
+import com.saul.power.mymediaplayer.utils.KeyframeIndex;
+
+/**
+ * Seeks a MyMediaPlayer after the timeline while it is dragged.  Only one seek
+ * is sent to the player at a time: positions the finger passes while a seek
+ * runs replace each other, and the latest is sent once the seek completes.
+ * While dragging the player is sent to the keyframe at or before the finger,
+ * which it can show without decoding anything else, and once the timeline is
+ * let go it is sent to the exact position.
+ *
+ * Everything runs on the UI thread.
+ *
+ * @author Saul Howard
+ *
+ */
+class Scrubber {
+
+	private static final String TAG = "Scrubber";
+
+	// how long a seek may take before the next one is sent anyway
+	private static final long SEEK_TIMEOUT = 1000;
+
+	private final MyMediaPlayer player;
+	private final TrickPlay trickPlay;
+
+	// posts the timeout to the UI thread
+	private final View view;
+
+	// set while the timeline is held
+	private boolean scrubbing;
+
+	// whether the video plays again once the timeline is let go
+	private boolean resume;
+
+	// where the finger last moved the timeline to, -1 once it is let go
+	private int target = -1;
+
+	// whether a seek is running, and the position to send next, -1 for none
+	private boolean seeking;
+	private int pending = -1;
+	private boolean precise;
+
+	private final Runnable seekTimeout = new Runnable() {
+
+		@Override
+		public void run() {
+
+			Log.w(TAG, "No seek completion, moving on");
+			onSeekComplete();
+		}
+	};
+
+	/**
+	 * @param trickPlay holds the keyframe index of the video
+	 */
+	Scrubber(MyMediaPlayer player, TrickPlay trickPlay, View view) {
+
+		this.player = player;
+		this.trickPlay = trickPlay;
+		this.view = view;
+	}
+
+	/**
+	 * Holds the video still while the timeline is dragged.
+	 */
+	void start() {
+
+		if (scrubbing)
+			return;
+
+		scrubbing = true;
+		resume = player.pause();
+	}
+
+	/**
+	 * Seeks to the position the timeline was moved to, as soon as the player is
+	 * done with the seek before.
+	 */
+	void moveTo(int position) {
+
+		pending = position;
+
+		// moved without being held, by the keyboard or a trackball
+		precise = !scrubbing;
+
+		if (scrubbing)
+			target = position;
+
+		if (!seeking)
+			seekPending();
+	}
+
+	/**
+	 * Seeks to exactly where the timeline was let go and plays from there if
+	 * the video was playing before.
+	 */
+	void finish() {
+
+		if (!scrubbing)
+			return;
+
+		scrubbing = false;
+
+		// the last keyframe sent may be short of the finger
+		if (target >= 0) {
+			pending = target;
+			target = -1;
+		}
+
+		precise = true;
+
+		if (seeking)
+			return;
+
+		if (pending >= 0)
+			seekPending();
+		else
+			resume();
+	}
+
+	/**
+	 * Forgets the seeks still to be sent, when the player goes away.
+	 */
+	void cancel() {
+
+		view.removeCallbacks(seekTimeout);
+
+		scrubbing = false;
+		resume = false;
+		seeking = false;
+		pending = -1;
+		target = -1;
+	}
+
+	boolean isScrubbing() {
+		return scrubbing;
+	}
+
+	/**
+	 * Called once the player has shown the frame it was last asked to seek to.
+	 */
+	void onSeekComplete() {
+
+		if (!seeking)
+			return;
+
+		seeking = false;
+		view.removeCallbacks(seekTimeout);
+
+		if (pending >= 0)
+			seekPending();
+		else if (!scrubbing)
+			resume();
+	}
+
+	private void resume() {
+
+		if (resume) {
+			resume = false;
+			player.play();
+		}
+	}
+
+	private void seekPending() {
+
+		int position = pending;
+		pending = -1;
+
+		if (!precise) {
+
+			KeyframeIndex index = trickPlay.getIndex();
+			int keyframe = index == null ? -1 : index.atOrBefore(position);
+
+			if (keyframe >= 0)
+				position = keyframe;
+		}
+
+		seeking = true;
+		view.postDelayed(seekTimeout, SEEK_TIMEOUT);
+
+		player.seekTo(position);
+	}
+}
@@ -0,0 +1,295 @@
+package com.saul.power.mymediaplayer;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+
+import com.saul.power.mymediaplayer.utils.KeyframeIndex;
+
+/**
+ * Fast forward and rewind for a MyMediaPlayer at 2x, 4x, 8x and 16x.  The
+ * video is held paused and stepped from keyframe to keyframe, so every seek
+ * shows a frame without decoding anything in between.  The next seek is only
+ * issued once the last one completed and the scan has caught up with the next
+ * keyframe, which keeps the speed true to the clock however slow the decoder is.
+ *
+ * Until the keyframes of the video are indexed it steps a second at a time.
+ * Everything apart from cancel runs on the UI thread.
+ *
+ * @author Saul Howard
+ *
+ */
+class TrickPlay {
+
+	private static final String TAG = "TrickPlay";
+
+	private static final int[] SPEEDS = { 2, 4, 8, 16 };
+
+	// how long a seek may take before the scan moves on without it
+	private static final long SEEK_TIMEOUT = 1000;
+
+	// the shortest time a frame is shown for
+	private static final long MIN_STEP = 40;
+
+	// the step through a video whose keyframes aren't indexed
+	private static final int GRID_STEP = 1000;
+
+	private final MyMediaPlayer player;
+
+	// posts the steps to the UI thread
+	private final View view;
+
+	private volatile String path;
+	private volatile KeyframeIndex index;
+	private volatile boolean indexing;
+
+	// 1 while fast forwarding, -1 while rewinding, otherwise 0
+	private volatile int direction;
+	private int speed;
+
+	// where and when the scan started at its current speed
+	private int anchorPosition;
+	private long anchorTime;
+
+	// the frame last seeked to, and whether that seek is still running
+	private int position;
+	private boolean seeking;
+
+	// whether the video plays again once the scan stops
+	private boolean resume;
+
+	private final Runnable stepper = new Runnable() {
+
+		@Override
+		public void run() {
+			step();
+		}
+	};
+
+	private final Runnable seekTimeout = new Runnable() {
+
+		@Override
+		public void run() {
+
+			Log.w(TAG, "No seek completion for " + position + ", moving on");
+			onSeekComplete();
+		}
+	};
+
+	TrickPlay(MyMediaPlayer player, View view) {
+
+		this.player = player;
+		this.view = view;
+	}
+
+	/**
+	 * Indexes the keyframes of the video that is about to play, in the background.
+	 */
+	void setPath(String path) {
+
+		if (path == null || path.equals(this.path))
+			return;
+
+		this.path = path;
+		index = null;
+
+		buildIndex();
+	}
+
+	private void buildIndex() {
+
+		final String indexed = path;
+
+		if (indexing || indexed == null)
+			return;
+
+		indexing = true;
+
+		new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+
+				KeyframeIndex built = KeyframeIndex.forPath(indexed);
+
+				// the video may have changed while it was indexed
+				if (indexed.equals(path))
+					index = built;
+
+				indexing = false;
+
+				if (!indexed.equals(path))
+					buildIndex();
+			}
+		}, TAG).start();
+	}
+
+	/**
+	 * Starts scanning in the direction, or speeds up a scan already going that
+	 * way.  Past the top speed the scan stops.
+	 *
+	 * @param direction 1 to fast forward, -1 to rewind
+	 * @return the speed scanned at, 0 if the scan stopped
+	 */
+	int scan(int direction) {
+
+		if (direction == this.direction) {
+
+			if (++speed == SPEEDS.length) {
+				stop();
+				return 0;
+			}
+
+		} else {
+
+			if (this.direction == 0) {
+
+				// the moov box may have been cached since the last attempt
+				if (index == null)
+					buildIndex();
+
+				resume = player.pause();
+				position = player.getPosition();
+			}
+
+			this.direction = direction;
+			speed = 0;
+		}
+
+		Log.i(TAG, "Scanning at " + (direction * SPEEDS[speed]) + "x");
+
+		anchorPosition = position;
+		anchorTime = SystemClock.uptimeMillis();
+
+		view.removeCallbacks(stepper);
+
+		// a running seek steps on once it completes
+		if (!seeking)
+			step();
+
+		return SPEEDS[speed];
+	}
+
+	/**
+	 * Stops the scan and plays the video from the last frame shown if it was
+	 * playing before.
+	 */
+	void stop() {
+
+		if (direction == 0)
+			return;
+
+		cancel();
+
+		if (resume) {
+			resume = false;
+			player.play();
+		}
+	}
+
+	/**
+	 * Stops the scan where it is.  Safe to call from any thread.
+	 */
+	void cancel() {
+
+		direction = 0;
+
+		view.removeCallbacks(stepper);
+	}
+
+	/**
+	 * @return the keyframes of the video, null until they are indexed
+	 */
+	KeyframeIndex getIndex() {
+		return index;
+	}
+
+	boolean isScanning() {
+		return direction != 0;
+	}
+
+	/**
+	 * Called once the player has shown the frame it was last asked to seek to.
+	 */
+	void onSeekComplete() {
+
+		if (!seeking)
+			return;
+
+		seeking = false;
+		view.removeCallbacks(seekTimeout);
+
+		if (direction != 0)
+			view.postDelayed(stepper, MIN_STEP);
+	}
+
+	/**
+	 * Seeks to the frame the scan has reached, or waits until it reaches the next one.
+	 */
+	private void step() {
+
+		int direction = this.direction;
+
+		if (direction == 0 || seeking)
+			return;
+
+		KeyframeIndex index = this.index;
+		int speed = SPEEDS[this.speed];
+		long target = anchorPosition + direction * speed * (SystemClock.uptimeMillis() - anchorTime);
+
+		int next = nextFrame(index, position, direction);
+
+		if (next < 0) {
+
+			// nothing further to show in this direction
+			stop();
+			return;
+		}
+
+		long ahead = (next - target) * direction;
+
+		if (ahead > 0) {
+			view.postDelayed(stepper, Math.max(MIN_STEP, ahead / speed));
+			return;
+		}
+
+		// a slow seek may have let the scan pass several keyframes, only the last is shown
+		position = frameAt(index, (int) Math.max(0, Math.min(target, player.getDuration())), direction);
+		seeking = true;
+
+		view.postDelayed(seekTimeout, SEEK_TIMEOUT);
+
+		player.seekTo(position);
+	}
+
+	/**
+	 * @return the next frame from the position in the direction, -1 at either end
+	 */
+	private int nextFrame(KeyframeIndex index, int position, int direction) {
+
+		int duration = player.getDuration();
+
+		if (index != null) {
+
+			int next = direction > 0 ? index.after(position) : index.before(position);
+
+			return next > duration ? -1 : next;
+		}
+
+		if (direction > 0)
+			return position >= duration ? -1 : Math.min(duration, position + GRID_STEP);
+
+		return position <= 0 ? -1 : Math.max(0, position - GRID_STEP);
+	}
+
+	/**
+	 * @return the last frame the scan passed on its way to the target
+	 */
+	private static int frameAt(KeyframeIndex index, int target, int direction) {
+
+		if (index == null)
+			return target;
+
+		return direction > 0 ? index.atOrBefore(target) : index.atOrAfter(target);
+	}
+}
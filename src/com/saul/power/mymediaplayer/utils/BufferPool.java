@@ -0,0 +1,85 @@
+package com.saul.power.mymediaplayer.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of large direct buffers shared by the download paths so that copying
+ * a video doesn't allocate on the heap.  Streams can only be read into an
+ * array, so arrays of the same size are pooled alongside the buffers.  Both
+ * are created on demand and at most MAX_POOLED of each are kept around once
+ * released.
+ *
+ * @author Saul Howard
+ *
+ */
+public class BufferPool {
+
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final int MAX_POOLED = 8;
+
+	private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+	private static final AtomicInteger pooled = new AtomicInteger();
+
+	private static final ConcurrentLinkedQueue<byte[]> arrays = new ConcurrentLinkedQueue<byte[]>();
+	private static final AtomicInteger pooledArrays = new AtomicInteger();
+
+	/**
+	 * @return a cleared buffer of BUFFER_SIZE bytes, which must be handed back with release
+	 */
+	public static ByteBuffer acquire() {
+
+		ByteBuffer buffer = pool.poll();
+
+		if (buffer == null)
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		pooled.decrementAndGet();
+		buffer.clear();
+
+		return buffer;
+	}
+
+	public static void release(ByteBuffer buffer) {
+
+		if (buffer == null || !buffer.isDirect() || buffer.capacity() != BUFFER_SIZE)
+			return;
+
+		if (pooled.incrementAndGet() > MAX_POOLED) {
+			pooled.decrementAndGet();
+			return;
+		}
+
+		pool.offer(buffer);
+	}
+
+	/**
+	 * @return an array of BUFFER_SIZE bytes, which must be handed back with releaseArray
+	 */
+	public static byte[] acquireArray() {
+
+		byte[] array = arrays.poll();
+
+		if (array == null)
+			return new byte[BUFFER_SIZE];
+
+		pooledArrays.decrementAndGet();
+
+		return array;
+	}
+
+	public static void releaseArray(byte[] array) {
+
+		if (array == null || array.length != BUFFER_SIZE)
+			return;
+
+		if (pooledArrays.incrementAndGet() > MAX_POOLED) {
+			pooledArrays.decrementAndGet();
+			return;
+		}
+
+		arrays.offer(array);
+	}
+}
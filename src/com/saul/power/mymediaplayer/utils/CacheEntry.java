@@ -0,0 +1,49 @@
+package com.saul.power.mymediaplayer.utils;
+
+/**
+ * Everything the cache knows about a single downloaded resource.
+ *
+ * @author Saul Howard
+ *
+ */
+public class CacheEntry {
+
+	// the hash of the normalized url, unique per resource
+	public final String key;
+
+	// the name of the file in the cache directory
+	public final String filename;
+
+	public long size;
+	public String mimeType;
+
+	// milliseconds since the epoch
+	public long created, lastAccess;
+	
+	// validators for conditional requests, null if the server sent none
+	public String etag, lastModified;
+	
+	// when the copy goes stale, see Validators for the special values
+	public long expires = Validators.NEVER;
+	
+	// the location the file was downloaded from, null if the file was found on disk
+	public String url;
+	
+	// CRC32 of the file as it was downloaded or -1, and when it was last checked against the file
+	public long checksum = Checksums.UNKNOWN;
+	public long verified;
+
+	public CacheEntry(String key, String filename) {
+
+		this.key = key;
+		this.filename = filename;
+	}
+	
+	/**
+	 * @return true if the cached copy can be used without asking the server
+	 */
+	public boolean isFresh() {
+		
+		return expires == Validators.NEVER || (expires != Validators.ALWAYS && System.currentTimeMillis() < expires);
+	}
+}
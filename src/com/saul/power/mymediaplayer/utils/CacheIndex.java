@@ -0,0 +1,146 @@
+package com.saul.power.mymediaplayer.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * Reads and writes the compact binary index that maps cache keys to their
+ * files.  The index is read once when the cache is created so lookups never
+ * have to touch the file system.
+ *
+ * @author Saul Howard
+ *
+ */
+class CacheIndex {
+
+	private static final String TAG = "CacheIndex";
+
+	static final String FILENAME = "cache.idx";
+
+	private static final int MAGIC = 0x4d4d5049;
+	private static final int VERSION = 3;
+
+	/**
+	 * @return the entries in the index or null if there is no readable index
+	 */
+	static List<CacheEntry> read(File file) {
+
+		if (!file.exists())
+			return null;
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+			if (in.readInt() != MAGIC)
+				return null;
+			
+			int version = in.readInt();
+			
+			if (version < 1 || version > VERSION)
+				return null;
+
+			int count = in.readInt();
+			List<CacheEntry> entries = new ArrayList<CacheEntry>(count);
+
+			for (int i = 0; i < count; i++) {
+
+				CacheEntry entry = new CacheEntry(in.readUTF(), in.readUTF());
+				entry.size = in.readLong();
+				entry.mimeType = in.readUTF();
+				entry.created = in.readLong();
+				entry.lastAccess = in.readLong();
+				
+				// version 1 indexes predate revalidation
+				if (version >= 2) {
+					entry.etag = readOptional(in);
+					entry.lastModified = readOptional(in);
+					entry.expires = in.readLong();
+				}
+				
+				// version 2 indexes predate integrity checks
+				if (version >= 3) {
+					entry.url = readOptional(in);
+					entry.checksum = in.readLong();
+					entry.verified = in.readLong();
+				}
+
+				entries.add(entry);
+			}
+
+			return entries;
+
+		} catch (IOException e) {
+			Log.w(TAG, "Discarding unreadable cache index", e);
+			return null;
+		} finally {
+			try {
+				if (in != null)
+					in.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	/**
+	 * Writes the entries to a temporary file and renames it over the index so a
+	 * crash never leaves a half written index behind.
+	 */
+	static void write(File file, Collection<CacheEntry> entries) throws IOException {
+
+		File temp = new File(file.getPath() + FileIO.TEMP_EXTENSION);
+		FileOutputStream stream = new FileOutputStream(temp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(entries.size());
+
+			for (CacheEntry entry : entries) {
+				out.writeUTF(entry.key);
+				out.writeUTF(entry.filename);
+				out.writeLong(entry.size);
+				out.writeUTF(entry.mimeType != null ? entry.mimeType : "");
+				out.writeLong(entry.created);
+				out.writeLong(entry.lastAccess);
+				writeOptional(out, entry.etag);
+				writeOptional(out, entry.lastModified);
+				out.writeLong(entry.expires);
+				writeOptional(out, entry.url);
+				out.writeLong(entry.checksum);
+				out.writeLong(entry.verified);
+			}
+
+			out.flush();
+			FileIO.sync(stream.getChannel());
+
+		} finally {
+			out.close();
+		}
+
+		FileIO.commit(temp, file);
+	}
+
+	private static String readOptional(DataInputStream in) throws IOException {
+
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeOptional(DataOutputStream out, String value) throws IOException {
+
+		out.writeBoolean(value != null);
+		if (value != null)
+			out.writeUTF(value);
+	}
+}
@@ -0,0 +1,134 @@
+package com.saul.power.mymediaplayer.utils;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Derives cache keys and file names from resource urls.  Keys are the
+ * SHA-256 of the normalized url, so two urls only share a file if they
+ * point at the same resource.
+ *
+ * @author Saul Howard
+ *
+ */
+public class CacheKeys {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * @return the 64 character hex key for the url
+	 */
+	public static String key(String url) {
+
+		try {
+
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] hash = digest.digest(normalize(url).getBytes("UTF-8"));
+
+			char[] key = new char[hash.length * 2];
+
+			for (int i = 0; i < hash.length; i++) {
+				key[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+				key[i * 2 + 1] = HEX[hash[i] & 0xf];
+			}
+
+			return new String(key);
+
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 is not available", e);
+		}
+	}
+
+	/**
+	 * Lower cases the scheme and host, drops default ports and fragments so that
+	 * equivalent urls map to the same key.
+	 */
+	static String normalize(String url) {
+
+		try {
+
+			URI uri = new URI(url.trim());
+
+			if (uri.getScheme() == null || uri.getHost() == null)
+				return url.trim();
+
+			String scheme = uri.getScheme().toLowerCase();
+			int port = uri.getPort();
+
+			if ((scheme.equals("http") && port == 80) || (scheme.equals("https") && port == 443))
+				port = -1;
+
+			String path = uri.getRawPath();
+
+			if (path == null || path.length() == 0)
+				path = "/";
+
+			StringBuilder normalized = new StringBuilder();
+			normalized.append(scheme).append("://").append(uri.getHost().toLowerCase());
+
+			if (port != -1)
+				normalized.append(':').append(port);
+
+			normalized.append(path);
+
+			if (uri.getRawQuery() != null)
+				normalized.append('?').append(uri.getRawQuery());
+
+			return normalized.toString();
+
+		} catch (URISyntaxException e) {
+			return url.trim();
+		}
+	}
+
+	/**
+	 * Returns the extension of the last path segment, including the dot, or an
+	 * empty string.  The host and query string are never considered.
+	 */
+	public static String extension(String url) {
+
+		int end = url.length();
+		int query = url.indexOf('?');
+		int fragment = url.indexOf('#');
+
+		if (query >= 0)
+			end = query;
+		if (fragment >= 0 && fragment < end)
+			end = fragment;
+
+		int slash = url.lastIndexOf('/', end - 1);
+		int dot = url.lastIndexOf('.', end - 1);
+
+		// the dot has to be in the last path segment, not in the host
+		if (dot <= slash || slash < url.indexOf("//") + 2 || end - dot - 1 > 4 || end - dot - 1 == 0)
+			return "";
+
+		for (int i = dot + 1; i < end; i++) {
+			if (!Character.isLetterOrDigit(url.charAt(i)))
+				return "";
+		}
+
+		return url.substring(dot, end).toLowerCase();
+	}
+
+	public static String mimeType(String filename) {
+
+		String name = filename.toLowerCase();
+
+		if (name.endsWith(".mp4") || name.endsWith(".m4v"))
+			return "video/mp4";
+		if (name.endsWith(".3gp"))
+			return "video/3gpp";
+		if (name.endsWith(".webm"))
+			return "video/webm";
+		if (name.endsWith(".mkv"))
+			return "video/x-matroska";
+
+		return "application/octet-stream";
+	}
+}
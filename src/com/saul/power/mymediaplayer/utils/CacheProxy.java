@@ -0,0 +1,730 @@
+package com.saul.power.mymediaplayer.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * A small HTTP server bound to the loopback interface that lets the MediaPlayer
+ * start playing a video while it is still being cached.  The video is cached as
+ * blocks, see SparseFile, and requests are answered from whichever blocks are
+ * present as they land on disk.  A gap the background download isn't writing
+ * is fetched from the origin server for the request, so a seek into an
+ * uncached part of the video costs one round trip, and the whole blocks among
+ * those bytes are cached on the way through.  The background download then
+ * carries on from the end of the gap.
+ *
+ * Handing out a url costs nothing on the network: the background download of
+ * a video starts with the first request for it, so a playlist can be mapped
+ * ahead of time without downloading every video in it.  Only the video set
+ * as playing downloads in the foreground.  The next one, requested while it
+ * is prepared ahead of time, downloads in the background so it doesn't hold
+ * back the one being watched, until it is set as playing in turn.
+ *
+ * @author Saul Howard
+ *
+ */
+public class CacheProxy {
+
+	private static final String TAG = "CacheProxy";
+
+	private static final String HOST = "127.0.0.1";
+
+	// how long a request waits for the download to reveal the file's length
+	private static final long HEADER_TIMEOUT = 30000;
+
+	private static final long POLL_INTERVAL = 50;
+
+	private static CacheProxy instance;
+
+	private final Map<String, Fill> fills = new ConcurrentHashMap<String, Fill>();
+
+	// the remote location of each file a url was handed out for
+	private final Map<String, String> urls = new ConcurrentHashMap<String, String>();
+
+	// the file of the video being watched, null to download every video in the foreground
+	private String playing;
+
+	private ServerSocket serverSocket;
+	private Thread acceptThread;
+
+	public static synchronized CacheProxy getInstance() {
+
+		if (instance == null)
+			instance = new CacheProxy();
+
+		return instance;
+	}
+
+	private CacheProxy() {}
+
+	/**
+	 * Returns a URL the MediaPlayer can stream the resource from while it is
+	 * cached in the background.  Fully cached resources are returned as a local
+	 * path so the proxy stays out of the way.  Caching starts once the url is
+	 * first requested.  Waits for the cache index to load, so not for the UI thread.
+	 *
+	 * @param url the remote location of the video
+	 * @return the url to hand to the MediaPlayer
+	 */
+	public synchronized String getProxyUrl(String url) {
+
+		String key = CacheKeys.key(url);
+		CacheEntry entry = CacheUtils.getCache().get(key);
+
+		if (entry != null)
+			return new File(FileIO.getExternalDirectory(), entry.filename).getAbsolutePath();
+
+		String filename = key + CacheKeys.extension(url);
+
+		try {
+			start();
+		} catch (IOException e) {
+			Log.e(TAG, "Could not start the proxy, streaming from the origin", e);
+			return url;
+		}
+
+		urls.put(filename, url);
+
+		return "http://" + HOST + ":" + serverSocket.getLocalPort() + "/" + filename;
+	}
+
+	/**
+	 * Marks the video being watched, whose download goes ahead of the others.
+	 * The background download of a video prepared ahead of time is moved to
+	 * the foreground once it plays.
+	 *
+	 * @param url the remote location of the video
+	 */
+	public synchronized void setPlaying(String url) {
+
+		playing = CacheUtils.getFilename(url);
+
+		Fill fill = fills.get(playing);
+
+		if (fill != null)
+			fill.promote();
+	}
+
+	/**
+	 * Hints that playback is about to continue from the given time, so the
+	 * video's background download moves there straight away.  The time is
+	 * mapped to a byte offset in proportion to the duration.
+	 *
+	 * @param url the remote location of the video
+	 * @param position the time playback continues from, in milliseconds
+	 * @param duration the length of the video, in milliseconds
+	 */
+	public void prioritize(String url, long position, long duration) {
+
+		Fill fill = fills.get(CacheUtils.getFilename(url));
+
+		if (fill == null || fill.isComplete() || duration <= 0)
+			return;
+
+		long length = fill.sparse.getLength();
+
+		if (length > 0)
+			fill.sparse.prioritize(length * Math.max(0, Math.min(position, duration)) / duration);
+	}
+
+	/**
+	 * @return the name of the cached file a url from getProxyUrl serves, null if it isn't one
+	 */
+	public synchronized String getFilename(String proxyUrl) {
+
+		if (serverSocket == null)
+			return null;
+
+		String prefix = "http://" + HOST + ":" + serverSocket.getLocalPort() + "/";
+
+		return proxyUrl.startsWith(prefix) ? proxyUrl.substring(prefix.length()) : null;
+	}
+
+	/**
+	 * Stops accepting connections.  Downloads already running keep filling the cache.
+	 */
+	public synchronized void stop() {
+
+		if (serverSocket == null)
+			return;
+
+		try {
+			serverSocket.close();
+		} catch (IOException e) {}
+
+		serverSocket = null;
+		acceptThread = null;
+	}
+
+	private void start() throws IOException {
+
+		if (serverSocket != null)
+			return;
+
+		final ServerSocket socket = new ServerSocket(0, 8, InetAddress.getByName(HOST));
+		serverSocket = socket;
+
+		acceptThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+
+				while (!socket.isClosed()) {
+
+					try {
+						final Socket client = socket.accept();
+
+						new Thread(new Runnable() {
+
+							@Override
+							public void run() {
+								handle(client);
+							}
+						}, TAG + " client").start();
+
+					} catch (IOException e) {
+						if (!socket.isClosed())
+							Log.e(TAG, "Accept failed", e);
+					}
+				}
+			}
+		}, TAG);
+
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+
+		Log.i(TAG, "Listening on port " + socket.getLocalPort());
+	}
+
+	/**
+	 * @return the fill serving the file, started on the first request and
+	 * replaced if its blocks were evicted or it failed, null if the file isn't served
+	 */
+	private synchronized Fill getFill(String filename) {
+
+		Fill fill = fills.get(filename);
+		String url = urls.get(filename);
+
+		if (url != null && (fill == null || fill.failed || fill.isStale())) {
+
+			fill = new Fill(url, filename);
+			fills.put(filename, fill);
+			fill.start(playing == null || playing.equals(filename));
+		}
+
+		return fill;
+	}
+
+	private void handle(Socket client) {
+
+		try {
+
+			BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), "ISO-8859-1"));
+			String requestLine = reader.readLine();
+
+			if (requestLine == null)
+				return;
+
+			String range = null;
+			String line;
+
+			while ((line = reader.readLine()) != null && line.length() > 0) {
+
+				if (line.toLowerCase().startsWith("range:"))
+					range = line.substring(6).trim();
+			}
+
+			String[] parts = requestLine.split(" ");
+			OutputStream out = client.getOutputStream();
+
+			// a method and a path are all the proxy needs from the request line
+			if (parts.length < 2 || !parts[1].startsWith("/")) {
+				out.write("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes("ISO-8859-1"));
+				return;
+			}
+
+			Fill fill = getFill(parts[1].substring(1));
+
+			if (fill == null) {
+				out.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes("ISO-8859-1"));
+				return;
+			}
+
+			long[] requested = parseRange(range);
+
+			// the video is kept while the player reads it, whatever its place in the cache
+			CacheUtils.getCache().pin(fill.filename);
+
+			try {
+				if (!serveFromCache(fill, requested, out))
+					passThrough(fill, range, out);
+			} finally {
+				CacheUtils.getCache().unpin(fill.filename);
+			}
+
+		} catch (IOException e) {
+			// the player routinely drops connections when it seeks
+			Log.i(TAG, "Client connection closed: " + e.getMessage());
+		} finally {
+			try {
+				client.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	/**
+	 * Streams the requested bytes from the cached blocks, waiting for a block
+	 * the download is writing and fetching any other gap from the origin.
+	 *
+	 * @param requested the range from parseRange, null for the whole video
+	 * @return false if the request should go to the origin server instead
+	 */
+	private boolean serveFromCache(Fill fill, long[] requested, OutputStream out) throws IOException {
+
+		long total = fill.awaitLength(HEADER_TIMEOUT);
+
+		if (total <= 0)
+			return false;
+
+		boolean ranged = requested != null;
+		long start = 0, end = total - 1;
+
+		if (ranged && requested[0] < 0) {
+
+			// the last bytes of the video, all of it if it is shorter
+			start = requested[1] > 0 ? Math.max(0, total - requested[1]) : total;
+
+		} else if (ranged) {
+
+			start = requested[0];
+
+			if (requested[1] >= 0 && requested[1] < total)
+				end = requested[1];
+		}
+
+		if (start >= total || end < start) {
+			out.write(("HTTP/1.1 416 Requested Range Not Satisfiable\r\nContent-Range: bytes */" + total
+					+ "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1"));
+			return true;
+		}
+
+		StringBuilder headers = new StringBuilder();
+		headers.append(ranged ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+		headers.append("Content-Type: ").append(CacheKeys.mimeType(fill.filename)).append("\r\n");
+		headers.append("Content-Length: ").append(end - start + 1).append("\r\n");
+		if (ranged)
+			headers.append("Content-Range: bytes ").append(start).append("-").append(end).append("/").append(total).append("\r\n");
+		headers.append("Accept-Ranges: bytes\r\nConnection: close\r\n\r\n");
+
+		out.write(headers.toString().getBytes("ISO-8859-1"));
+
+		ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+		long position = start;
+		RandomAccessFile file = null;
+
+		try {
+
+			while (position <= end) {
+
+				long available = fill.available(position);
+
+				if (available <= 0) {
+
+					if (fill.failed)
+						throw new IOException("Download failed with " + position + " of " + total + " bytes missing");
+
+					// nothing will ever fill the gap, the player reconnects and gets a new fill
+					if (fill.isStale())
+						throw new IOException("Blocks of " + fill.filename + " were dropped with " + position + " of " + total + " bytes sent");
+
+					if (fill.isComplete() || fill.sparse.getCursor() == position / SparseFile.BLOCK_SIZE)
+						waitForData();
+					else
+						position = fetchFromOrigin(fill, position, Math.min(end, fill.sparse.gapEnd(position) - 1), out);
+
+					continue;
+				}
+
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), Math.min(available, end + 1 - position)));
+
+				int read;
+
+				if (fill.isComplete()) {
+
+					if (file == null)
+						file = new RandomAccessFile(fill.file, "r");
+
+					read = file.getChannel().read(buffer, position);
+
+				} else {
+
+					// -1 once the blocks were moved into place, the next pass reads the complete file
+					read = fill.sparse.read(position, buffer);
+				}
+
+				if (read <= 0)
+					continue;
+
+				out.write(buffer.array(), 0, read);
+				position += read;
+			}
+
+			out.flush();
+
+		} finally {
+			if (file != null)
+				file.close();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Sends a gap in the cached blocks from the origin server, caching the
+	 * whole blocks in it.  The background download leaves those blocks alone
+	 * meanwhile and moves on to what follows the gap.
+	 *
+	 * @param end the last byte of the gap to send
+	 * @return the position after the last byte sent
+	 */
+	private long fetchFromOrigin(Fill fill, long position, long end, OutputStream out) throws IOException {
+
+		Log.i(TAG, "Fetching bytes " + position + "-" + end + " of " + fill.url + " from the origin");
+
+		SparseFile sparse = fill.sparse;
+		HttpURLConnection connection = Connections.open(fill.url);
+		InputStream input = null;
+		int first = 0, last = -1;
+
+		try {
+
+			connection.setRequestProperty("Range", "bytes=" + position + "-" + end);
+
+			if (sparse.getValidator() != null)
+				connection.setRequestProperty("If-Range", sparse.getValidator());
+
+			int code = Connections.connect(connection);
+
+			long[] range = FileIO.parseContentRange(connection.getHeaderField("Content-Range"));
+
+			// the headers are out already, a changed video can only end the response
+			if (code != HttpURLConnection.HTTP_PARTIAL || range == null || range[0] != position)
+				throw new IOException("Origin did not honor range " + position + "-" + end + " for " + fill.url);
+
+			input = connection.getInputStream();
+
+			byte[] buffer = new byte[16 * 1024];
+			CRC32 crc = new CRC32();
+
+			// only blocks written from their first byte can be cached
+			first = (int) ((position + SparseFile.BLOCK_SIZE - 1) / SparseFile.BLOCK_SIZE);
+			last = (int) (end / SparseFile.BLOCK_SIZE);
+			boolean caching = true;
+
+			sparse.claim(first, last);
+			sparse.prioritize(end + 1);
+
+			while (position <= end) {
+
+				// reads stop at block boundaries so each block is hashed on its own
+				int block = (int) (position / SparseFile.BLOCK_SIZE);
+				long blockEnd = SparseFile.offsetOf(block) + sparse.lengthOf(block);
+				int read = input.read(buffer, 0, (int) Math.min(buffer.length, Math.min(end + 1, blockEnd) - position));
+
+				if (read <= 0)
+					throw new IOException("Origin closed the connection at " + position + " of " + end);
+
+				out.write(buffer, 0, read);
+
+				if (caching && block >= first) {
+
+					try {
+
+						sparse.channel().write(ByteBuffer.wrap(buffer, 0, read), position);
+						crc.update(buffer, 0, read);
+
+						if (position + read == blockEnd) {
+							sparse.markPresent(block, crc.getValue());
+							crc.reset();
+						}
+
+					} catch (IOException e) {
+						// evicted or moved into place meanwhile, the player still gets its bytes
+						caching = false;
+					}
+				}
+
+				position += read;
+			}
+
+			out.flush();
+
+			CacheUtils.trackPartial(CacheKeys.key(fill.url), fill.url, sparse);
+
+			return position;
+
+		} finally {
+
+			sparse.release(first, last);
+
+			Connections.release(connection, input);
+		}
+	}
+
+	/**
+	 * Forwards the request to the origin server for bytes that are not on disk yet.
+	 */
+	private void passThrough(Fill fill, String range, OutputStream out) throws IOException {
+
+		Log.i(TAG, "Passing through " + (range != null ? range : "full request") + " for " + fill.url);
+
+		HttpURLConnection connection = Connections.open(fill.url);
+		InputStream input = null;
+
+		try {
+
+			if (range != null)
+				connection.setRequestProperty("Range", range);
+			int code = Connections.connect(connection);
+
+			StringBuilder headers = new StringBuilder();
+			String message = connection.getResponseMessage();
+
+			// the reason phrase may be left empty, never "null"
+			headers.append("HTTP/1.1 ").append(code).append(" ").append(message != null ? message : "").append("\r\n");
+			appendHeader(headers, connection, "Content-Type");
+			appendHeader(headers, connection, "Content-Length");
+			appendHeader(headers, connection, "Content-Range");
+			appendHeader(headers, connection, "Accept-Ranges");
+			headers.append("Connection: close\r\n\r\n");
+
+			out.write(headers.toString().getBytes("ISO-8859-1"));
+
+			input = code < 400 ? connection.getInputStream() : connection.getErrorStream();
+
+			if (input != null) {
+
+				byte[] buffer = new byte[16 * 1024];
+				int read;
+
+				while ((read = input.read(buffer)) > 0)
+					out.write(buffer, 0, read);
+			}
+
+			out.flush();
+
+		} finally {
+			Connections.release(connection, input);
+		}
+	}
+
+	private static void appendHeader(StringBuilder headers, HttpURLConnection connection, String name) {
+
+		String value = connection.getHeaderField(name);
+
+		if (value != null)
+			headers.append(name).append(": ").append(value).append("\r\n");
+	}
+
+	/**
+	 * Parses "bytes=start-end" into {start, end}.  End is -1 when open ended.
+	 * A suffix range "bytes=-n", the last n bytes, comes back as {-1, n} as
+	 * only the length of the video tells where it starts.
+	 *
+	 * @return null if there is no range or it can't be parsed, the whole video is sent then
+	 */
+	private static long[] parseRange(String range) {
+
+		if (range == null || !range.startsWith("bytes="))
+			return null;
+
+		try {
+
+			String spec = range.substring(6).trim();
+			int dash = spec.indexOf('-');
+
+			if (dash < 0)
+				throw new NumberFormatException("no dash");
+
+			if (dash == 0)
+				return new long[] { -1, Long.parseLong(spec.substring(1).trim()) };
+
+			long start = Long.parseLong(spec.substring(0, dash).trim());
+			long end = dash < spec.length() - 1 ? Long.parseLong(spec.substring(dash + 1).trim()) : -1;
+
+			if (start >= 0)
+				return new long[] { start, end };
+
+		} catch (RuntimeException e) {}
+
+		Log.w(TAG, "Ignoring malformed range " + range);
+
+		return null;
+	}
+
+	private static void waitForData() throws IOException {
+
+		try {
+			Thread.sleep(POLL_INTERVAL);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for data");
+		}
+	}
+
+	/**
+	 * A background download of the video's blocks into the cache, from the
+	 * start.  The proxy reads from the same SparseFile the download writes to.
+	 */
+	private static class Fill implements CacheRequest.OnCacheListener {
+
+		final String url, filename;
+		final File file;
+		final SparseFile sparse;
+
+		volatile boolean failed;
+
+		// false while the video downloads in the background
+		private volatile boolean foreground;
+
+		// set once a download reported back, the blocks are released only once
+		private boolean completed;
+
+		Fill(String url, String filename) {
+
+			this.url = url;
+			this.filename = filename;
+
+			File dataDir = FileIO.getExternalDirectory();
+			file = new File(dataDir, filename);
+			sparse = SparseFile.open(dataDir, filename);
+		}
+
+		/**
+		 * Starts the download, or joins one already running for the same video.
+		 *
+		 * @param foreground false to download the video in the background until it is promoted
+		 */
+		void start(boolean foreground) {
+
+			this.foreground = foreground;
+
+			if (foreground) {
+				CacheUtils.requestResource(url, false, true, this);
+				return;
+			}
+
+			CacheUtils.requestBackground(url, new CacheRequest.OnCacheListener() {
+
+				@Override
+				public void onCacheComplete(String url, String path) {
+
+					// handed over to a foreground download, which reports instead
+					if (!Fill.this.foreground)
+						Fill.this.onCacheComplete(url, path);
+				}
+			});
+		}
+
+		/**
+		 * Moves the download to the foreground, picking up from the blocks the
+		 * background download wrote.
+		 */
+		synchronized void promote() {
+
+			if (foreground || completed)
+				return;
+
+			foreground = true;
+			CacheUtils.requestResource(url, false, true, this);
+		}
+
+		@Override
+		public synchronized void onCacheComplete(String url, String path) {
+
+			if (completed)
+				return;
+
+			completed = true;
+			failed = path.equals("");
+
+			if (failed)
+				Log.w(TAG, "Background fill failed for " + url);
+
+			// the complete file is served from now on, a failed fill makes way for a new one
+			sparse.release();
+		}
+
+		/**
+		 * @return true if the blocks were deleted without the video being completed
+		 */
+		boolean isStale() {
+
+			return sparse.isClosed() && !file.exists();
+		}
+
+		/**
+		 * @return true once the blocks were moved into place as the cached file
+		 */
+		boolean isComplete() {
+
+			return sparse.isClosed() && file.exists();
+		}
+
+		/**
+		 * @return the number of bytes that can be read from the position without a gap
+		 */
+		long available(long position) {
+
+			if (isComplete())
+				return file.length() - position;
+
+			return sparse.available(position);
+		}
+
+		/**
+		 * Waits until the total length of the video is known.
+		 *
+		 * @return the length or -1 if it could not be determined
+		 */
+		long awaitLength(long timeout) throws IOException {
+
+			long deadline = System.currentTimeMillis() + timeout;
+
+			while (System.currentTimeMillis() < deadline) {
+
+				if (isComplete())
+					return file.length();
+
+				long length = sparse.getLength();
+
+				if (length >= 0)
+					return length;
+
+				// the server doesn't support ranges and the blocks were dropped
+				if (failed || sparse.isClosed())
+					return -1;
+
+				waitForData();
+			}
+
+			return -1;
+		}
+	}
+}
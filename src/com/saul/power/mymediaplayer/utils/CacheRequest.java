@@ -0,0 +1,200 @@
+package com.saul.power.mymediaplayer.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import android.util.Log;
+
+/**
+ * A caller's handle on a resource being cached.  Every caller asking for the
+ * same resource at the same time shares a single download; cancelling a
+ * request only stops that download once every caller has cancelled.
+ *
+ * @author Saul Howard
+ *
+ */
+public class CacheRequest {
+
+	private static final String TAG = "CacheRequest";
+
+	private final Flight flight;
+	private boolean released;
+
+	CacheRequest(Flight flight) {
+
+		this.flight = flight;
+	}
+
+	/**
+	 * Waits for the resource to be cached.
+	 *
+	 * @return the absolute path of the cached file or an empty string on failure
+	 * @throws InterruptedException if the waiting thread is interrupted, the request is cancelled
+	 */
+	public String get() throws InterruptedException {
+
+		try {
+			return flight.get();
+		} catch (InterruptedException e) {
+			cancel();
+			throw e;
+		} catch (CancellationException e) {
+			return "";
+		} catch (ExecutionException e) {
+			Log.e(TAG, "Caching failed for " + flight.url, e.getCause());
+			return "";
+		}
+	}
+
+	public boolean isDone() {
+		return flight.isDone();
+	}
+
+	/**
+	 * @return the progress of the download, shared by every request for the resource
+	 */
+	public DownloadProgress getProgress() {
+		return flight.progress;
+	}
+
+	/**
+	 * Gives up on the resource.  The download keeps going for as long as
+	 * another caller still wants it.
+	 */
+	public synchronized void cancel() {
+
+		if (released)
+			return;
+
+		released = true;
+		flight.release();
+	}
+
+	/**
+	 * Called on a background thread once a resource is cached or the download fails.
+	 */
+	public interface OnCacheListener {
+		public abstract void onCacheComplete(String url, String path);
+	}
+
+	/**
+	 * One download shared by every request for the same key.
+	 */
+	static class Flight extends FutureTask<String> {
+
+		final String key, url;
+
+		// a background download, a prefetch of the start of the resource or a
+		// video that plays later, never joined by full requests, which take over from it
+		final boolean head;
+
+		final DownloadProgress progress;
+
+		private final List<OnCacheListener> listeners = new ArrayList<OnCacheListener>();
+		private final CountDownLatch finished = new CountDownLatch(1);
+		private int references;
+
+		Flight(String key, String url, Callable<String> download) {
+
+			this(key, url, false, download);
+		}
+
+		Flight(String key, String url, boolean head, Callable<String> download) {
+
+			super(download);
+
+			this.key = key;
+			this.url = url;
+			this.head = head;
+
+			progress = new DownloadProgress(url);
+		}
+
+		/**
+		 * Adds a caller to the flight.
+		 *
+		 * @return false if the flight was already cancelled and can't be joined
+		 */
+		synchronized boolean acquire(OnCacheListener listener) {
+
+			if (isCancelled())
+				return false;
+
+			references++;
+
+			if (listener != null && !isDone())
+				listeners.add(listener);
+			else if (listener != null)
+				listener.onCacheComplete(url, result());
+
+			return true;
+		}
+
+		synchronized void release() {
+
+			if (--references <= 0 && !isDone()) {
+
+				Log.i(TAG, "Last request cancelled, stopping download of " + url);
+				cancel(true);
+			}
+		}
+
+		@Override
+		public void run() {
+
+			DownloadProgress.attach(progress);
+
+			try {
+				super.run();
+			} finally {
+				DownloadProgress.attach(null);
+
+				// a cancelled flight stays registered until its thread has stopped writing
+				CacheUtils.land(this);
+				finished.countDown();
+			}
+		}
+
+		/**
+		 * Waits until the thread running this flight is done with the files.
+		 */
+		void awaitFinished() throws InterruptedException {
+			finished.await();
+		}
+
+		@Override
+		protected void done() {
+
+			List<OnCacheListener> notify;
+
+			synchronized (this) {
+				notify = new ArrayList<OnCacheListener>(listeners);
+				listeners.clear();
+			}
+
+			String path = result();
+
+			if (isCancelled())
+				progress.finish(DownloadProgress.Outcome.CANCELLED);
+			else
+				progress.finish(path.equals("") ? DownloadProgress.Outcome.FAILED : DownloadProgress.Outcome.COMPLETE);
+
+			for (OnCacheListener listener : notify)
+				listener.onCacheComplete(url, path);
+		}
+
+		private String result() {
+
+			try {
+				return isCancelled() ? "" : get();
+			} catch (Exception e) {
+				return "";
+			}
+		}
+	}
+}
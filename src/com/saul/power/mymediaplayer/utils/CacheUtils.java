@@ -1,37 +1,509 @@
 package com.saul.power.mymediaplayer.utils;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.util.Log;
+
+import com.saul.power.mymediaplayer.utils.CacheRequest.Flight;
+import com.saul.power.mymediaplayer.utils.CacheRequest.OnCacheListener;
+import com.saul.power.mymediaplayer.utils.DownloadProgress.OnProgressListener;
 
 public class CacheUtils {
+	
+	private static final String TAG = "CacheUtils";
+	
+	// default budget for the video cache
+	public static final long DEFAULT_CACHE_SIZE = 512L * 1024 * 1024;
+	
+	private static DiskCache cache;
+	
+	// whether the cache has the frequency admission policy
+	private static boolean frequencyAdmission;
+	
+	// checks the cached files in the background
+	private static CacheVerifier verifier;
+	
+	// downloads currently running, keyed by cache key
+	private static final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+	
+	private static final ExecutorService executor = Executors.newCachedThreadPool();
+	
+	// when set, large resources are fetched as parallel byte ranges
+	private static SegmentedDownloader segmentedDownloader;
+	
+	// told about the progress of every download, for metrics
+	private static volatile OnProgressListener progressListener;
+	
+	/**
+	 * Enables segmented downloads for resources cached from now on.
+	 * 
+	 * @param concurrency the number of parallel connections, 1 or less disables segmenting
+	 * @param segmentSize the number of bytes requested per connection
+	 */
+	public static void setSegmentedDownloads(int concurrency, long segmentSize) {
+		
+		if (concurrency <= 1)
+			segmentedDownloader = null;
+		else
+			segmentedDownloader = new SegmentedDownloader(concurrency, segmentSize);
+	}
+
+	/**
+	 * Reports the progress and outcome of every download started from now on,
+	 * prefetches included.
+	 * 
+	 * @param listener called on the download threads, null to stop reporting
+	 */
+	public static void setProgressListener(OnProgressListener listener) {
+		
+		progressListener = listener;
+	}
+
+	/**
+	 * Replaces the cache with one limited to the given number of bytes.  The
+	 * cache is kept if it already has the size and the policy, so this can be
+	 * called every time an activity is created.
+	 * 
+	 * @param maxBytes the most bytes the cached videos may take up
+	 * @param frequencyAdmission true to keep frequently watched videos over one-off ones
+	 */
+	public static synchronized void setCacheSize(long maxBytes, boolean frequencyAdmission) {
+		
+		if (cache != null && cache.getMaxBytes() == maxBytes && CacheUtils.frequencyAdmission == frequencyAdmission)
+			return;
+		
+		use(maxBytes, frequencyAdmission);
+	}
+	
+	/**
+	 * @return the cache of downloaded videos, created with the default budget on first use
+	 */
+	public static synchronized DiskCache getCache() {
+		
+		if (cache == null)
+			use(DEFAULT_CACHE_SIZE, false);
+		
+		return cache;
+	}
+	
+	private static void use(long maxBytes, boolean frequencyAdmission) {
+		
+		if (verifier != null)
+			verifier.stop();
+		
+		// the old cache has to be done with the index before the new one reads it
+		if (cache != null)
+			cache.shutdown();
+		
+		DiskCache.AdmissionPolicy admission = frequencyAdmission ? new FrequencyAdmission(256) : null;
+		
+		// the index is read in the background, nothing here touches storage
+		cache = new DiskCache(FileIO.getExternalDirectory(), maxBytes, admission);
+		CacheUtils.frequencyAdmission = frequencyAdmission;
+		
+		verifier = new CacheVerifier(cache, FileIO.getExternalDirectory());
+		verifier.start();
+	}
 
+	/**
+	 * Caches the resource, blocking until it is on disk.  Concurrent calls for
+	 * the same resource share one download.
+	 * 
+	 * @param url
+	 * @param refresh true to check a fresh cached copy with the server anyway
+	 * @return the absolute path of the cached file or an empty string on failure
+	 */
 	public static String cacheResource(String url, boolean refresh) {
 		
+		if (url.equals(""))
+			return null;
+		
+		CacheRequest request = requestResource(url, refresh, null);
+		
+		try {
+			return request.get();
+		} catch (InterruptedException e) {
+			// the request was cancelled by get()
+			Thread.currentThread().interrupt();
+			return "";
+		}
+	}
+	
+	/**
+	 * Starts caching the resource in the background.  If the resource is
+	 * already being downloaded the request joins that download.
+	 * 
+	 * @param url
+	 * @param refresh true to check a fresh cached copy with the server anyway
+	 * @param listener notified on a background thread when done, may be null
+	 * @return a handle to wait on or cancel the request
+	 */
+	public static CacheRequest requestResource(String url, boolean refresh, OnCacheListener listener) {
+		
+		return requestResource(url, refresh, false, listener);
+	}
+	
+	/**
+	 * @param sparse true to download into blocks that can be read as soon as
+	 * each one is written, whatever order they arrive in
+	 */
+	static CacheRequest requestResource(final String url, final boolean refresh, final boolean sparse, OnCacheListener listener) {
+		
+		String key = CacheKeys.key(url);
+		Flight previous = null;
+		
+		while (true) {
+			
+			Flight flight = flights.get(key);
+			
+			if (flight != null && flight.head) {
+				
+				// take over from the prefetch, which the scheduler holds back or pauses
+				// while this request waits, and resume from the bytes it wrote
+				previous = flight;
+				flight.cancel(true);
+				
+			} else if (flight != null) {
+				
+				if (flight.acquire(listener)) {
+					
+					Log.i(TAG, "Joining download in flight for " + url);
+					return new CacheRequest(flight);
+				}
+				
+				// cancelled, but its thread may still be writing the partial file
+				previous = flight;
+				flights.remove(key, flight);
+				continue;
+			}
+			
+			final Flight cancelled = previous;
+			
+			Flight created = new Flight(key, url, new Callable<String>() {
+				
+				@Override
+				public String call() throws Exception {
+					
+					if (cancelled != null)
+						cancelled.awaitFinished();
+					
+					return fetchResource(url, refresh, sparse);
+				}
+			});
+			
+			boolean registered = flight != null && flight.head
+					? flights.replace(key, flight, created)
+					: flights.putIfAbsent(key, created) == null;
+			
+			if (registered) {
+				
+				created.acquire(listener);
+				start(created);
+				
+				return new CacheRequest(created);
+			}
+		}
+	}
+	
+	/**
+	 * Downloads the start of a resource so that it begins playing straight
+	 * away later on.  Nothing is fetched if the resource is already cached or
+	 * being downloaded.
+	 * 
+	 * @param bytes the number of leading bytes to fetch
+	 * @return a handle to wait on or cancel the prefetch, null if there was nothing to do
+	 */
+	static CacheRequest requestHead(final String url, final long bytes) {
+		
+		final String key = CacheKeys.key(url);
+		
+		// a partly cached video already has its first blocks
+		if (getCache().contains(key) || flights.containsKey(key) || SparseFile.exists(FileIO.getExternalDirectory(), getFilename(url)))
+			return null;
+		
+		Flight created = new Flight(key, url, true, new Callable<String>() {
+			
+			@Override
+			public String call() throws Exception {
+				
+				String path;
+				
+				DownloadScheduler.setBackground(true);
+				
+				try {
+					path = FileIO.loadRemoteHead(url, getFilename(url), bytes);
+				} finally {
+					DownloadScheduler.setBackground(false);
+				}
+				
+				// small enough to have been downloaded in full
+				if (!path.equals("") && !path.endsWith(FileIO.PARTIAL_EXTENSION))
+					register(key, url, new File(path), null);
+				
+				return path;
+			}
+		});
+		
+		if (flights.putIfAbsent(key, created) != null)
+			return null;
+		
+		created.acquire(null);
+		start(created);
+		
+		return new CacheRequest(created);
+	}
+	
+	/**
+	 * Starts caching a video that plays later, into blocks like the proxy
+	 * does.  It is a background download, held back while the video being
+	 * watched downloads, and a foreground request for it takes over from the
+	 * blocks it got to.  A full download already running for the video is
+	 * joined, a prefetch of its start is taken over.
+	 * 
+	 * @param listener notified on a background thread when done, may be null
+	 * @return a handle to wait on or cancel the request
+	 */
+	static CacheRequest requestBackground(final String url, OnCacheListener listener) {
+		
+		String key = CacheKeys.key(url);
+		Flight previous = null;
+		
+		while (true) {
+			
+			Flight flight = flights.get(key);
+			
+			if (flight != null && flight.head) {
+				
+				// the blocks pick up from the bytes the prefetch wrote
+				previous = flight;
+				flight.cancel(true);
+				
+			} else if (flight != null) {
+				
+				if (flight.acquire(listener))
+					return new CacheRequest(flight);
+				
+				// cancelled, but its thread may still be writing the partial file
+				previous = flight;
+				flights.remove(key, flight);
+				continue;
+			}
+			
+			final Flight cancelled = previous;
+			
+			Flight created = new Flight(key, url, true, new Callable<String>() {
+				
+				@Override
+				public String call() throws Exception {
+					
+					if (cancelled != null)
+						cancelled.awaitFinished();
+					
+					DownloadScheduler.setBackground(true);
+					
+					try {
+						return fetchResource(url, false, true);
+					} finally {
+						DownloadScheduler.setBackground(false);
+					}
+				}
+			});
+			
+			boolean registered = flight != null && flight.head
+					? flights.replace(key, flight, created)
+					: flights.putIfAbsent(key, created) == null;
+			
+			if (registered) {
+				
+				created.acquire(listener);
+				start(created);
+				
+				return new CacheRequest(created);
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of full downloads running, which background downloads make way for
+	 */
+	static int getForegroundDownloads() {
+		
+		int count = 0;
+		
+		for (Flight flight : flights.values()) {
+			if (!flight.head)
+				count++;
+		}
+		
+		return count;
+	}
+	
+	private static void start(Flight flight) {
+		
+		OnProgressListener listener = progressListener;
+		
+		if (listener != null)
+			flight.progress.addListener(listener);
+		
+		executor.execute(flight);
+	}
+	
+	static void land(Flight flight) {
+		
+		flights.remove(flight.key, flight);
+	}
+	
+	private static String fetchResource(String url, boolean refresh, boolean sparse) {
+		
 		String filename = null;
 		
 		if (!url.equals("")) {
 			
-			filename = "resource_" +  Math.abs(url.hashCode()) + getExtension(url);
+			String key = CacheKeys.key(url);
+			filename = key + CacheKeys.extension(url);
 
 			File dataDir = FileIO.getExternalDirectory();
-			File file = new File(dataDir, filename);
+			DiskCache cache = getCache();
+			
+			// answered from the index, no need to stat the file
+			CacheEntry entry = cache.get(key);
+			
+			if (entry != null) {
+				
+				File file = new File(dataDir, entry.filename);
+				
+				if (isCurrent(url, entry, refresh))
+					return file.getAbsolutePath();
+				
+				cache.remove(key);
+				FileIO.deleteFromDisc(entry.filename);
+			}
+			
+			// an interrupted download picks up from the partial file
+			Validators validators = new Validators();
+			String path = download(url, key, filename, validators, sparse);
+			
+			if (!path.equals(""))
+				register(key, url, new File(path), validators);
 			
-			if (!file.exists() || refresh)
-				filename = FileIO.loadRemoteData(url, filename);
-			else
-				filename = file.getAbsolutePath();
+			filename = path;
 		}
 		
 		return filename;
 	}
 	
-	private static String getExtension(String url) {
+	/**
+	 * Keeps the resource in the cache while it is watched, even if the
+	 * admission policy would have it evicted first.  Pin it before it is
+	 * requested so it isn't evicted as soon as it is downloaded.
+	 * 
+	 * @param url
+	 */
+	public static void pin(String url) {
+		
+		getCache().pin(getFilename(url));
+	}
+	
+	/**
+	 * Lets a pinned resource be evicted again.
+	 * 
+	 * @param url
+	 */
+	public static void unpin(String url) {
+		
+		getCache().unpin(getFilename(url));
+	}
+	
+	/**
+	 * Returns the name the resource is stored under in the cache directory.
+	 * 
+	 * @param url
+	 * @return
+	 */
+	public static String getFilename(String url) {
+		
+		return CacheKeys.key(url) + CacheKeys.extension(url);
+	}
+	
+	/**
+	 * Decides whether a cached copy can be used.  Fresh copies are used as is
+	 * unless a refresh is forced, stale ones are revalidated with a conditional
+	 * request so an unchanged video is never downloaded again.
+	 */
+	private static boolean isCurrent(String url, CacheEntry entry, boolean refresh) {
+		
+		if (!refresh && entry.isFresh())
+			return true;
+		
+		try {
+			
+			if (!FileIO.revalidate(url, entry))
+				return false;
+			
+			Log.i(TAG, "Revalidated " + url);
+			getCache().update(entry);
+			
+			return true;
+			
+		} catch (IOException e) {
+			
+			// offline, the stale copy beats no video at all
+			Log.w(TAG, "Could not revalidate " + url + ", using the cached copy", e);
+			return true;
+		}
+	}
+	
+	/**
+	 * Adds a freshly downloaded file to the cache.
+	 */
+	static CacheEntry register(String key, String url, File file, Validators validators) {
+		
+		CacheEntry entry = new CacheEntry(key, file.getName());
+		entry.url = url;
+		entry.size = file.length();
+		entry.mimeType = CacheKeys.mimeType(file.getName());
+		entry.created = System.currentTimeMillis();
+		entry.lastAccess = entry.created;
+		
+		if (validators != null)
+			validators.copyTo(entry);
+		
+		// hashed while it was written, nothing to check until the interval is up
+		if (entry.checksum != Checksums.UNKNOWN)
+			entry.verified = entry.created;
+		
+		getCache().put(entry);
+		
+		return entry;
+	}
+	
+	/**
+	 * Tells the cache how much of a partly cached video is on disk.
+	 */
+	static void trackPartial(String key, String url, SparseFile file) {
+		
+		getCache().putPartial(key, url, file.filename, file.getPresentBytes());
+	}
+	
+	private static String download(String url, String key, String filename, Validators validators, boolean sparse) {
+		
+		// the blocks already cached are kept and the rest filled in around them
+		if (sparse || SparseFile.exists(FileIO.getExternalDirectory(), filename))
+			return SparseDownloader.download(url, key, filename, validators);
 		
-		String[] parts = url.split("[.]");
+		SegmentedDownloader downloader = segmentedDownloader;
 		
-		if (parts.length > 1 && parts[(parts.length - 1)].length() <= 4)
-			return "." + parts[(parts.length - 1)];
+		// resuming a sequential partial beats starting over in segments, a
+		// segmented one picks up with the segments it is missing
+		if (downloader == null || FileIO.isPartial(filename) && !FileIO.isSegmented(filename))
+			return FileIO.loadRemoteData(url, filename, validators);
 		
-		return "";
+		return downloader.download(url, filename, validators);
 	}
 	
 }
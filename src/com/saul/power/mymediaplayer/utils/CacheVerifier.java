@@ -0,0 +1,155 @@
+package com.saul.power.mymediaplayer.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Checks cached files against the checksum taken while they were downloaded.
+ * Files are checked one at a time, only while nothing is being downloaded and
+ * playback isn't buffering.  A file that doesn't match is moved to the
+ * quarantine directory, dropped from the cache and downloaded again.
+ *
+ * @author Saul Howard
+ *
+ */
+class CacheVerifier implements Runnable {
+
+	private static final String TAG = "CacheVerifier";
+
+	// a checked file is trusted for this long before it is checked again
+	static final long REVERIFY_INTERVAL = 7L * 24 * 60 * 60 * 1000;
+
+	// how long the verifier waits between looks for idle time, in seconds
+	private static final long IDLE_POLL = 30;
+
+	static final String QUARANTINE_DIRECTORY = "quarantine";
+
+	// corrupt files kept around for inspection, the oldest go first
+	private static final int MAX_QUARANTINED = 4;
+
+	private final DiskCache cache;
+	private final File directory;
+
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+
+			Thread thread = new Thread(runnable, TAG);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			thread.setDaemon(true);
+
+			return thread;
+		}
+	});
+
+	CacheVerifier(DiskCache cache, File directory) {
+
+		this.cache = cache;
+		this.directory = directory;
+	}
+
+	void start() {
+
+		executor.scheduleWithFixedDelay(this, IDLE_POLL, IDLE_POLL, TimeUnit.SECONDS);
+	}
+
+	void stop() {
+
+		executor.shutdownNow();
+	}
+
+	@Override
+	public void run() {
+
+		while (isIdle() && !Thread.currentThread().isInterrupted()) {
+
+			CacheEntry entry = cache.nextToVerify(System.currentTimeMillis() - REVERIFY_INTERVAL);
+
+			if (entry == null)
+				return;
+
+			verify(entry);
+		}
+	}
+
+	private static boolean isIdle() {
+
+		return CacheUtils.getForegroundDownloads() == 0 && !DownloadScheduler.isBuffering();
+	}
+
+	/**
+	 * @return true if the file matched its checksum
+	 */
+	boolean verify(CacheEntry entry) {
+
+		File file = new File(directory, entry.filename);
+		long checksum;
+
+		try {
+			checksum = Checksums.compute(file);
+		} catch (IOException e) {
+			Log.w(TAG, "Could not read " + entry.filename + ", dropping it from the cache", e);
+			cache.remove(entry.key);
+			return false;
+		}
+
+		if (entry.checksum != Checksums.UNKNOWN && entry.checksum != checksum) {
+
+			Log.e(TAG, "Checksum mismatch for " + entry.filename + ", quarantining");
+			quarantine(entry, file);
+
+			return false;
+		}
+
+		// files from before checksums were taken start from what is on disk now
+		entry.checksum = checksum;
+		entry.verified = System.currentTimeMillis();
+		cache.update(entry);
+
+		return true;
+	}
+
+	private void quarantine(CacheEntry entry, File file) {
+
+		cache.remove(entry.key);
+
+		File quarantine = new File(directory, QUARANTINE_DIRECTORY);
+		quarantine.mkdirs();
+
+		if (!file.renameTo(new File(quarantine, entry.filename)))
+			file.delete();
+
+		File[] quarantined = quarantine.listFiles();
+
+		if (quarantined != null && quarantined.length > MAX_QUARANTINED) {
+
+			Arrays.sort(quarantined, new Comparator<File>() {
+
+				@Override
+				public int compare(File lhs, File rhs) {
+
+					return lhs.lastModified() < rhs.lastModified() ? -1 : (lhs.lastModified() == rhs.lastModified() ? 0 : 1);
+				}
+			});
+
+			for (int i = 0; i < quarantined.length - MAX_QUARANTINED; i++)
+				quarantined[i].delete();
+		}
+
+		// files found on disk have no url to fetch them from again
+		if (entry.url != null) {
+
+			Log.i(TAG, "Fetching " + entry.url + " again");
+			CacheUtils.requestResource(entry.url, false, null);
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package com.saul.power.mymediaplayer.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32 helpers for checking cached files against what the server sent.  The
+ * checksum of a download is worked out while it is written; the helpers here
+ * cover the cases where that isn't possible in one go: segments written out
+ * of order and partial files picked up from disk.
+ *
+ * @author Saul Howard
+ *
+ */
+class Checksums {
+
+	// the checksum of a file that was never hashed
+	static final long UNKNOWN = -1;
+
+	// the reflected CRC32 polynomial
+	private static final long POLYNOMIAL = 0xedb88320L;
+
+	// files are read through here to be hashed
+	private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+
+		@Override
+		protected byte[] initialValue() {
+			return new byte[BufferPool.BUFFER_SIZE];
+		}
+	};
+
+	/**
+	 * Adds the first bytes of a file to the checksum.
+	 *
+	 * @param length the number of bytes to read, -1 for the whole file
+	 */
+	static void update(Checksum checksum, File file, long length) throws IOException {
+
+		update(checksum, file, 0, length);
+	}
+
+	/**
+	 * Adds a range of a file to the checksum.
+	 *
+	 * @param length the number of bytes to read, -1 for the rest of the file
+	 */
+	static void update(Checksum checksum, File file, long offset, long length) throws IOException {
+
+		FileInputStream input = new FileInputStream(file);
+		byte[] bytes = scratch.get();
+
+		try {
+
+			input.getChannel().position(offset);
+
+			long remaining = length < 0 ? Long.MAX_VALUE : length;
+
+			while (remaining > 0) {
+
+				int read = input.read(bytes, 0, (int) Math.min(bytes.length, remaining));
+
+				if (read < 0)
+					break;
+
+				checksum.update(bytes, 0, read);
+				remaining -= read;
+			}
+
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * @return the CRC32 of the whole file
+	 */
+	static long compute(File file) throws IOException {
+
+		CRC32 crc = new CRC32();
+		update(crc, file, -1);
+
+		return crc.getValue();
+	}
+
+	/**
+	 * Works out the CRC32 of two pieces of data laid end to end from the CRC32
+	 * of each, the same way zlib's crc32_combine does.
+	 *
+	 * @param first the checksum of the first piece
+	 * @param second the checksum of the second piece
+	 * @param length the length of the second piece
+	 */
+	static long combine(long first, long second, long length) {
+
+		if (length <= 0)
+			return first;
+
+		// operators that append one and two zero bits to a crc
+		long[] even = new long[32];
+		long[] odd = new long[32];
+
+		odd[0] = POLYNOMIAL;
+
+		long row = 1;
+
+		for (int n = 1; n < 32; n++) {
+			odd[n] = row;
+			row <<= 1;
+		}
+
+		square(even, odd);
+		square(odd, even);
+
+		// append length zero bytes to the first crc, squaring the operator for every bit of the length
+		do {
+
+			square(even, odd);
+
+			if ((length & 1) != 0)
+				first = times(even, first);
+
+			length >>= 1;
+
+			if (length == 0)
+				break;
+
+			square(odd, even);
+
+			if ((length & 1) != 0)
+				first = times(odd, first);
+
+			length >>= 1;
+
+		} while (length != 0);
+
+		return first ^ second;
+	}
+
+	private static long times(long[] matrix, long vector) {
+
+		long sum = 0;
+
+		for (int i = 0; vector != 0; i++, vector >>>= 1) {
+			if ((vector & 1) != 0)
+				sum ^= matrix[i];
+		}
+
+		return sum;
+	}
+
+	private static void square(long[] square, long[] matrix) {
+
+		for (int n = 0; n < 32; n++)
+			square[n] = times(matrix, matrix[n]);
+	}
+}
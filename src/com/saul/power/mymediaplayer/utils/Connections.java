@@ -0,0 +1,238 @@
+package com.saul.power.mymediaplayer.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import android.util.Log;
+
+/**
+ * Opens and gives back the HTTP connections the downloads use.  The platform
+ * keeps idle keep-alive connections in a pool per host, but only takes a
+ * connection back once its response was read to the end and closed, and
+ * never after disconnect.  Every response is handed back through release,
+ * which drains what is left of a short body so the next request to the host
+ * skips the TCP and TLS handshakes.  Connections with a long body left, or
+ * that failed, are discarded.  Only a connection made through connect has a
+ * response to drain, asking one that failed to connect for its response
+ * would quietly try connecting again.
+ *
+ * @author Saul Howard
+ *
+ */
+public class Connections {
+
+	private static final String TAG = "Connections";
+
+	// idle keep-alive connections kept per host
+	public static final int MAX_IDLE_PER_HOST = 4;
+
+	// the most bytes read off an unfinished response to save its connection
+	static final int DRAIN_LIMIT = 64 * 1024;
+
+	static final int CONNECT_TIMEOUT = 15000;
+	static final int READ_TIMEOUT = 30000;
+
+	private static final Map<String, Stats> hosts = new HashMap<String, Stats>();
+
+	// connections whose response arrived, the others are discarded on release
+	private static final Set<HttpURLConnection> responded =
+			Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<HttpURLConnection, Boolean>()));
+
+	static {
+		// read when the pool is created, which is on the first connection
+		System.setProperty("http.keepAlive", "true");
+		System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_PER_HOST));
+	}
+
+	private Connections() {}
+
+	/**
+	 * Opens a GET request to the link.  The caller adds its headers and connects.
+	 */
+	static HttpURLConnection open(String link) throws IOException {
+
+		URL url = new URL(link);
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+
+		connection.setRequestMethod("GET");
+		connection.setConnectTimeout(CONNECT_TIMEOUT);
+		connection.setReadTimeout(READ_TIMEOUT);
+
+		synchronized (hosts) {
+			statsFor(url.getHost()).requests++;
+		}
+
+		return connection;
+	}
+
+	/**
+	 * Connects and reads the status line of the response.
+	 *
+	 * @return the response code
+	 */
+	static int connect(HttpURLConnection connection) throws IOException {
+
+		connection.connect();
+
+		int code = connection.getResponseCode();
+		responded.add(connection);
+
+		return code;
+	}
+
+	/**
+	 * Hands the connection back once the caller is done with the response,
+	 * whether or not it read the body.
+	 *
+	 * @param input the body stream the caller opened, null if it didn't
+	 */
+	static void release(HttpURLConnection connection, InputStream input) {
+
+		boolean connected = responded.remove(connection);
+
+		// a cancelled download shouldn't wait on the network to save a connection
+		if (!connected || Thread.currentThread().isInterrupted()) {
+			discard(connection, input);
+			return;
+		}
+
+		long drained = 0;
+
+		try {
+
+			if (input == null)
+				input = body(connection);
+
+			if (input != null) {
+
+				byte[] buffer = new byte[8 * 1024];
+				int read;
+
+				while ((read = input.read(buffer)) >= 0) {
+
+					drained += read;
+
+					if (drained > DRAIN_LIMIT) {
+						discard(connection, input);
+						return;
+					}
+				}
+
+				input.close();
+			}
+
+		} catch (IOException e) {
+			discard(connection, input);
+			return;
+		}
+
+		synchronized (hosts) {
+			Stats stats = statsFor(connection.getURL().getHost());
+			stats.released++;
+			stats.drained += drained;
+		}
+	}
+
+	static void release(HttpURLConnection connection) {
+
+		release(connection, null);
+	}
+
+	/**
+	 * Closes the connection's socket instead of pooling it.
+	 */
+	static void discard(HttpURLConnection connection, InputStream input) {
+
+		try {
+			if (input != null)
+				input.close();
+		} catch (IOException e) {}
+
+		connection.disconnect();
+
+		synchronized (hosts) {
+			statsFor(connection.getURL().getHost()).discarded++;
+		}
+	}
+
+	/**
+	 * @return the body of the response, from the error stream for error codes
+	 */
+	private static InputStream body(HttpURLConnection connection) throws IOException {
+
+		int code = connection.getResponseCode();
+
+		if (code >= 400)
+			return connection.getErrorStream();
+
+		try {
+			return connection.getInputStream();
+		} catch (IOException e) {
+			Log.w(TAG, "No body to drain for " + connection.getURL(), e);
+			return null;
+		}
+	}
+
+	private static Stats statsFor(String host) {
+
+		Stats stats = hosts.get(host);
+
+		if (stats == null) {
+			stats = new Stats();
+			hosts.put(host, stats);
+		}
+
+		return stats;
+	}
+
+	/**
+	 * @return a copy of the counters for every host connected to
+	 */
+	public static Map<String, Stats> getStats() {
+
+		Map<String, Stats> copy = new HashMap<String, Stats>();
+
+		synchronized (hosts) {
+			for (Map.Entry<String, Stats> entry : hosts.entrySet())
+				copy.put(entry.getKey(), entry.getValue().copy());
+		}
+
+		return copy;
+	}
+
+	/**
+	 * A snapshot of the counters of one host.
+	 */
+	public static class Stats {
+
+		// requests opened, connections handed back to the pool and connections closed
+		public long requests, released, discarded;
+
+		// bytes read off unfinished responses to save their connections
+		public long drained;
+
+		Stats copy() {
+
+			Stats stats = new Stats();
+			stats.requests = requests;
+			stats.released = released;
+			stats.discarded = discarded;
+			stats.drained = drained;
+
+			return stats;
+		}
+
+		@Override
+		public String toString() {
+
+			return "requests=" + requests + " released=" + released + " discarded=" + discarded + " drained=" + drained;
+		}
+	}
+}
@@ -24,6 +24,38 @@ public class DialogUtils {
     	} catch (Exception ex) {}
     }
     
+    /**
+     * Shows a progress bar that fills up as setProgress is called.
+     */
+    public static void showProgressBar(Context context, String message) {
+    	
+    	try {
+    		
+    		hideProgress();
+    		
+    		if (!registering) {
+    			progressDialog = new ProgressDialog(context);
+    			progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+    			progressDialog.setMessage(message);
+    			progressDialog.setCancelable(false);
+    			progressDialog.setMax(100);
+    			progressDialog.show();
+    		}
+    		
+    	} catch (Exception ex) {}
+    }
+    
+    /**
+     * @param percent between 0 and 100, -1 while the total is unknown
+     */
+    public static void setProgress(int percent) {
+    	
+    	if (progressDialog != null) {
+    		progressDialog.setIndeterminate(percent < 0);
+    		progressDialog.setProgress(Math.max(0, percent));
+    	}
+    }
+    
     public static void hideProgress() {
     	
     	if (progressDialog != null && !registering) {
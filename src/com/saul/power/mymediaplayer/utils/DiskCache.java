@@ -0,0 +1,861 @@
+package com.saul.power.mymediaplayer.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Keeps the files in the cache directory under a byte budget.  Entries are
+ * evicted least recently used first.  An optional admission policy can hold
+ * new files on probation so that one-off videos are evicted before the ones
+ * that are watched often.  Eviction runs on a background thread one file at
+ * a time so callers never block on a sweep.  A download that finds the volume
+ * short of space has files evicted in the same order on its own thread, see
+ * makeRoom, even if the cache is within its budget.
+ *
+ * The entries are persisted to an index file in the cache directory which is
+ * read once, on the background thread, when the cache is created.  Lookups
+ * are answered from memory and only wait for that first read.  Afterwards the
+ * index is reconciled with a single listing of the directory, picking up
+ * files it doesn't know about and dropping entries whose file is gone.
+ * Lookups only change the order of the entries, which is written along with
+ * the next change to the index or at most once a minute.
+ *
+ * Videos that are only partly cached as blocks, see SparseFile, count towards
+ * the budget too but are never returned by a lookup.  They are evicted by the
+ * block: the tail goes first and the head is kept so the video still starts
+ * straight away, until it is the eldest again and goes altogether.  Videos
+ * whose blocks are open, because they are being downloaded or served, are
+ * passed over until they are closed, and so are videos pinned while they are
+ * watched, however the admission policy ranked them.  Their
+ * block maps are their record, so they are left out of the index and picked
+ * up again when the directory is reconciled.
+ *
+ * @author Saul Howard
+ *
+ */
+public class DiskCache {
+
+	private static final String TAG = "DiskCache";
+
+	// how long shutdown waits for the queued evictions and index writes
+	private static final long SHUTDOWN_TIMEOUT = 5000;
+
+	// the longest lookups go unsaved when nothing else changes
+	private static final long ACCESS_SAVE_INTERVAL = 60 * 1000;
+
+	private final File directory, indexFile;
+	private final long maxBytes;
+	private final AdmissionPolicy admission;
+
+	// access ordered, the eldest entry is the least recently used
+	private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(16, .75f, true);
+
+	// entries the admission policy turned away, evicted before anything in entries
+	private final LinkedHashMap<String, CacheEntry> probation = new LinkedHashMap<String, CacheEntry>(16, .75f, true);
+
+	// partly cached videos, access ordered like entries
+	private final LinkedHashMap<String, CacheEntry> partial = new LinkedHashMap<String, CacheEntry>(16, .75f, true);
+
+	// how many times each file is pinned, see pin
+	private final Map<String, Integer> pinned = new HashMap<String, Integer>();
+
+	// evicts files and saves the index, one job at a time
+	private final ExecutorService worker = Executors.newSingleThreadExecutor();
+
+	private long size;
+	private long hits, misses, evictions, rejections;
+	private boolean trimming, saving, closed;
+
+	// set by lookups, whose recency is written with the next change to the
+	// index or once a minute, and when the index was last written
+	private boolean dirty;
+	private long savedAt;
+
+	// counted down once the index has been read
+	private final CountDownLatch loaded = new CountDownLatch(1);
+
+	public DiskCache(File directory, long maxBytes) {
+
+		this(directory, maxBytes, null);
+	}
+
+	/**
+	 * @param directory the directory holding the cached files
+	 * @param maxBytes the most bytes the cached files may take up
+	 * @param admission decides whether a new file may displace an older one, null to admit everything
+	 */
+	public DiskCache(File directory, long maxBytes, AdmissionPolicy admission) {
+
+		this.directory = directory;
+		this.indexFile = new File(directory, CacheIndex.FILENAME);
+		this.maxBytes = maxBytes;
+		this.admission = admission;
+
+		worker.execute(new Runnable() {
+
+			@Override
+			public void run() {
+
+				try {
+					FileIO.sweepTemporaryFiles();
+					load();
+				} finally {
+					loaded.countDown();
+				}
+
+				reconcile();
+			}
+		});
+	}
+
+	/**
+	 * Blocks until the index has been read, which only ever happens right after
+	 * the cache is created.  Must not be called while holding the lock.
+	 */
+	private void awaitLoaded() {
+
+		try {
+			loaded.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Looks up a cached resource and marks it as recently used.
+	 *
+	 * @param key the key from CacheKeys
+	 * @return the entry or null if the resource isn't cached
+	 */
+	public CacheEntry get(String key) {
+
+		awaitLoaded();
+
+		synchronized (this) {
+			return lookup(key);
+		}
+	}
+
+	private CacheEntry lookup(String key) {
+
+		if (admission != null)
+			admission.record(key);
+
+		CacheEntry entry = entries.get(key);
+
+		if (entry == null) {
+
+			entry = probation.remove(key);
+
+			// a second look earns the entry a place in the main cache
+			if (entry != null)
+				entries.put(key, entry);
+		}
+
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+
+		hits++;
+		entry.lastAccess = System.currentTimeMillis();
+		dirty = true;
+
+		if (entry.lastAccess - savedAt >= ACCESS_SAVE_INTERVAL)
+			save();
+
+		return entry;
+	}
+
+	/**
+	 * Checks for a resource without counting it as a use.
+	 */
+	public boolean contains(String key) {
+
+		awaitLoaded();
+
+		synchronized (this) {
+			return entries.containsKey(key) || probation.containsKey(key);
+		}
+	}
+
+	/**
+	 * Adds a file that was just written to the cache directory and schedules
+	 * eviction if the cache is now over budget.
+	 */
+	public void put(CacheEntry entry) {
+
+		awaitLoaded();
+
+		synchronized (this) {
+
+			removeEntry(entry.key);
+
+			if (admission != null)
+				admission.record(entry.key);
+
+			String victim = eldest(entries);
+
+			if (admission != null && victim != null && size + entry.size > maxBytes && !admission.admit(entry.key, victim)) {
+
+				probation.put(entry.key, entry);
+				rejections++;
+
+			} else {
+
+				entries.put(entry.key, entry);
+			}
+
+			size += entry.size;
+			save();
+		}
+
+		trim();
+	}
+
+	/**
+	 * Records how many bytes of a partly cached video are on disk, and that it
+	 * was used just now.  The video is replaced by a regular entry once it is
+	 * complete and put.
+	 */
+	public void putPartial(String key, String url, String filename, long bytes) {
+
+		awaitLoaded();
+
+		synchronized (this) {
+
+			CacheEntry entry = partial.get(key);
+
+			if (entry == null) {
+
+				entry = new CacheEntry(key, filename);
+				entry.url = url;
+				entry.mimeType = CacheKeys.mimeType(filename);
+				entry.created = System.currentTimeMillis();
+				partial.put(key, entry);
+			}
+
+			entry.lastAccess = System.currentTimeMillis();
+			size += bytes - entry.size;
+			entry.size = bytes;
+		}
+
+		trim();
+	}
+
+	/**
+	 * Persists changes made to an entry, such as new validators after a revalidation.
+	 */
+	public synchronized void update(CacheEntry entry) {
+
+		save();
+	}
+
+	/**
+	 * Keeps a file out of eviction until it is unpinned as many times, while
+	 * it is being watched.  The file needn't be in the cache yet, so a video
+	 * the admission policy turns away isn't evicted as soon as it is put.
+	 */
+	public synchronized void pin(String filename) {
+
+		Integer count = pinned.get(filename);
+
+		pinned.put(filename, count == null ? 1 : count + 1);
+	}
+
+	/**
+	 * Lets a pinned file be evicted again, straight away if the cache is over budget.
+	 */
+	public void unpin(String filename) {
+
+		synchronized (this) {
+
+			Integer count = pinned.get(filename);
+
+			if (count == null)
+				return;
+
+			if (count > 1)
+				pinned.put(filename, count - 1);
+			else
+				pinned.remove(filename);
+		}
+
+		trim();
+	}
+
+	/**
+	 * Forgets about a resource.  The caller is responsible for deleting its file.
+	 */
+	public void remove(String key) {
+
+		awaitLoaded();
+
+		synchronized (this) {
+			if (removeEntry(key) != null)
+				save();
+		}
+	}
+
+	/**
+	 * @return the entry whose file was checked longest ago, if that was before the given time
+	 */
+	synchronized CacheEntry nextToVerify(long before) {
+
+		CacheEntry next = null;
+
+		for (Map<String, CacheEntry> map : Arrays.asList(entries, probation)) {
+			for (CacheEntry entry : map.values()) {
+				if (entry.verified < before && (next == null || entry.verified < next.verified))
+					next = entry;
+			}
+		}
+
+		return next;
+	}
+
+	public Stats getStats() {
+
+		awaitLoaded();
+
+		Stats stats = new Stats();
+
+		synchronized (this) {
+			stats.hits = hits;
+			stats.misses = misses;
+			stats.evictions = evictions;
+			stats.rejections = rejections;
+			stats.size = size;
+			stats.maxSize = maxBytes;
+			stats.count = entries.size() + probation.size();
+			stats.partial = partial.size();
+		}
+
+		return stats;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	private CacheEntry removeEntry(String key) {
+
+		CacheEntry entry = entries.remove(key);
+
+		if (entry == null)
+			entry = probation.remove(key);
+
+		if (entry == null)
+			entry = partial.remove(key);
+
+		if (entry != null)
+			size -= entry.size;
+
+		return entry;
+	}
+
+	/**
+	 * Stops the background work once the evictions and index writes already
+	 * queued are done, so a cache that replaces this one can read and write
+	 * the index without this one overwriting it.  Changes made afterwards
+	 * aren't saved.
+	 */
+	public void shutdown() {
+
+		synchronized (this) {
+
+			if (dirty)
+				save();
+
+			closed = true;
+		}
+
+		worker.shutdown();
+
+		try {
+
+			if (!worker.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS))
+				Log.w(TAG, "Gave up waiting for the cache in " + directory + " to stop");
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Schedules the background eviction if the cache is over budget.
+	 */
+	private void trim() {
+
+		synchronized (this) {
+
+			if (trimming || closed || size <= maxBytes)
+				return;
+
+			trimming = true;
+		}
+
+		worker.execute(new Runnable() {
+
+			@Override
+			public void run() {
+
+				while (evictOne(false, null)) {
+					// let the downloads and the player have the disk between deletes
+					Thread.yield();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Evicts files, in the order the budget would, until the volume holding the
+	 * cache has the given number of bytes free.  Runs on the caller's thread,
+	 * which is about to write to the volume.
+	 *
+	 * @param keep the file about to be written, never evicted to make room for itself
+	 * @return false if evicting everything else didn't free enough
+	 */
+	public boolean makeRoom(long bytes, String keep) {
+
+		awaitLoaded();
+
+		while (directory.getUsableSpace() < bytes) {
+
+			if (!evictOne(true, keep))
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Evicts a single file, or the tail of a partly cached one.
+	 *
+	 * @param force true to evict even if the cache is within its budget
+	 * @param keep the file to pass over, may be null
+	 * @return true if a file was evicted and more may need to be
+	 */
+	private boolean evictOne(boolean force, String keep) {
+
+		CacheEntry victim;
+		boolean tail;
+
+		synchronized (this) {
+
+			if (!force && size <= maxBytes) {
+				trimming = false;
+				return false;
+			}
+
+			Map<String, CacheEntry> from = eldestEntry(probation, keep) != null ? probation : older(entries, partial, keep);
+			victim = eldestEntry(from, keep);
+
+			if (victim == null) {
+
+				if (!force)
+					trimming = false;
+
+				return false;
+			}
+
+			tail = from == partial && victim.size > SparseFile.HEAD_BYTES;
+
+			if (!tail) {
+
+				from.remove(victim.key);
+				size -= victim.size;
+				evictions++;
+
+				if (from != partial)
+					save();
+			}
+		}
+
+		if (tail) {
+			trimTail(victim);
+			return true;
+		}
+
+		Log.i(TAG, "Evicting " + victim.filename);
+
+		FileIO.deleteFromDisc(victim.filename);
+
+		return true;
+	}
+
+	/**
+	 * Frees a partly cached video down to its first blocks.
+	 */
+	private void trimTail(CacheEntry victim) {
+
+		Log.i(TAG, "Evicting the tail of " + victim.filename);
+
+		long freed;
+
+		try {
+
+			freed = SparseFile.evictTail(directory, victim.filename, SparseFile.HEAD_BYTES);
+
+			// opened since it was picked, it is passed over until it is closed again
+			if (freed < 0)
+				return;
+
+		} catch (IOException e) {
+			Log.w(TAG, "Could not trim " + victim.filename + ", deleting it", e);
+			freed = victim.size;
+			FileIO.deleteFromDisc(victim.filename);
+		}
+
+		synchronized (this) {
+
+			// the head stays until the rest of the cache has had its turn
+			if (partial.get(victim.key) == victim) {
+				// at most the head is left, even if the file was already closed and freed nothing
+				long bytes = Math.min(SparseFile.HEAD_BYTES, Math.max(0, victim.size - freed));
+				size -= victim.size - bytes;
+				victim.size = bytes;
+			}
+
+			evictions++;
+		}
+	}
+
+	/**
+	 * @return the map whose eldest entry, other than the one kept, was used longest ago
+	 */
+	private Map<String, CacheEntry> older(Map<String, CacheEntry> lhs, Map<String, CacheEntry> rhs, String keep) {
+
+		CacheEntry left = eldestEntry(lhs, keep), right = eldestEntry(rhs, keep);
+
+		if (left == null)
+			return rhs;
+		if (right == null)
+			return lhs;
+
+		return left.lastAccess <= right.lastAccess ? lhs : rhs;
+	}
+
+	/**
+	 * Schedules a write of the index.  Changes made while a write is pending
+	 * are picked up by that write.
+	 */
+	private void save() {
+
+		if (saving || closed)
+			return;
+
+		saving = true;
+
+		worker.execute(new Runnable() {
+
+			@Override
+			public void run() {
+
+				List<CacheEntry> snapshot;
+
+				synchronized (DiskCache.this) {
+
+					saving = false;
+					dirty = false;
+					savedAt = System.currentTimeMillis();
+
+					snapshot = new ArrayList<CacheEntry>(probation.size() + entries.size());
+					snapshot.addAll(probation.values());
+					snapshot.addAll(entries.values());
+				}
+
+				try {
+					CacheIndex.write(indexFile, snapshot);
+				} catch (IOException e) {
+					Log.e(TAG, "Could not save the cache index", e);
+				}
+			}
+		});
+	}
+
+	private static String eldest(Map<String, CacheEntry> map) {
+
+		Iterator<String> iterator = map.keySet().iterator();
+
+		return iterator.hasNext() ? iterator.next() : null;
+	}
+
+	/**
+	 * Peeks at the eldest entry that may be evicted, unlike get this doesn't
+	 * count as an access.  Files with their blocks open are being written or
+	 * read, pinned ones are being watched.
+	 *
+	 * @param keep the file of an entry to pass over, may be null
+	 */
+	private CacheEntry eldestEntry(Map<String, CacheEntry> map, String keep) {
+
+		for (CacheEntry entry : map.values()) {
+			if (!entry.filename.equals(keep) && !pinned.containsKey(entry.filename) && !SparseFile.isOpen(entry.filename))
+				return entry;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Reads the index, or builds one from the files in the directory if there
+	 * is no index yet.
+	 */
+	private void load() {
+
+		List<CacheEntry> loaded = CacheIndex.read(indexFile);
+
+		if (loaded == null) {
+
+			loaded = scan();
+
+			synchronized (this) {
+				save();
+			}
+		}
+
+		// oldest access first so the most recent entries end up at the tail
+		Collections.sort(loaded, new Comparator<CacheEntry>() {
+
+			@Override
+			public int compare(CacheEntry lhs, CacheEntry rhs) {
+
+				return lhs.lastAccess < rhs.lastAccess ? -1 : (lhs.lastAccess == rhs.lastAccess ? 0 : 1);
+			}
+		});
+
+		synchronized (this) {
+
+			for (CacheEntry entry : loaded) {
+				entries.put(entry.key, entry);
+				size += entry.size;
+			}
+		}
+
+		trim();
+	}
+
+	private List<CacheEntry> scan() {
+
+		List<CacheEntry> found = new ArrayList<CacheEntry>();
+		String[] names = directory.list();
+
+		if (names == null)
+			return found;
+
+		for (String name : names) {
+
+			CacheEntry entry = entryFor(name);
+
+			if (entry != null)
+				found.add(entry);
+		}
+
+		return found;
+	}
+
+	/**
+	 * Brings the index in line with the directory after it has been loaded.
+	 * Files written while the index wasn't being saved are added, entries whose
+	 * file was deleted behind the cache's back are dropped.  Partly cached
+	 * videos are found by their block maps.
+	 */
+	private void reconcile() {
+
+		long listed = System.currentTimeMillis();
+		String[] names = directory.list();
+
+		if (names == null)
+			return;
+
+		Set<String> present = new HashSet<String>(names.length);
+
+		for (String name : names)
+			present.add(name);
+
+		Set<String> known = new HashSet<String>();
+		int dropped;
+
+		synchronized (this) {
+			dropped = dropMissing(entries, present, known, listed) + dropMissing(probation, present, known, listed);
+		}
+
+		// only files missing from the index are looked at one by one
+		List<CacheEntry> added = new ArrayList<CacheEntry>();
+		List<CacheEntry> partials = new ArrayList<CacheEntry>();
+
+		for (String name : names) {
+
+			if (known.contains(name))
+				continue;
+
+			if (name.endsWith(SparseFile.MAP_EXTENSION)) {
+				partials.add(partialFor(name));
+				continue;
+			}
+
+			CacheEntry entry = entryFor(name);
+
+			if (entry != null)
+				added.add(entry);
+		}
+
+		synchronized (this) {
+
+			for (CacheEntry entry : added) {
+
+				if (entries.containsKey(entry.key) || probation.containsKey(entry.key))
+					continue;
+
+				// unknown files are the first to go, unless they are asked for again
+				probation.put(entry.key, entry);
+				size += entry.size;
+			}
+
+			for (CacheEntry entry : partials) {
+
+				if (partial.containsKey(entry.key))
+					continue;
+
+				partial.put(entry.key, entry);
+				size += entry.size;
+			}
+
+			if (dropped > 0 || !added.isEmpty()) {
+				Log.i(TAG, "Reconciled index: " + dropped + " missing, " + added.size() + " new");
+				save();
+			}
+		}
+
+		trim();
+	}
+
+	/**
+	 * Removes the entries whose file isn't in the listing.  Entries added after
+	 * the listing was taken are left alone.
+	 *
+	 * @param known filled in with the files of the entries that are kept
+	 * @return the number of entries removed
+	 */
+	private int dropMissing(Map<String, CacheEntry> map, Set<String> present, Set<String> known, long listed) {
+
+		int dropped = 0;
+		Iterator<CacheEntry> iterator = map.values().iterator();
+
+		while (iterator.hasNext()) {
+
+			CacheEntry entry = iterator.next();
+
+			if (present.contains(entry.filename) || entry.created >= listed) {
+				known.add(entry.filename);
+				continue;
+			}
+
+			iterator.remove();
+			size -= entry.size;
+			dropped++;
+		}
+
+		return dropped;
+	}
+
+	/**
+	 * @return an entry for a finished file in the directory, null for anything else
+	 */
+	private CacheEntry entryFor(String name) {
+
+		if (name.startsWith(CacheIndex.FILENAME) || name.endsWith(FileIO.TEMP_EXTENSION)
+				|| name.endsWith(FileIO.PARTIAL_EXTENSION) || name.endsWith(FileIO.RESUME_EXTENSION)
+				|| name.endsWith(SparseFile.DATA_EXTENSION) || name.endsWith(SparseFile.MAP_EXTENSION))
+			return null;
+
+		File file = new File(directory, name);
+
+		if (!file.isFile())
+			return null;
+
+		int dot = name.lastIndexOf('.');
+
+		CacheEntry entry = new CacheEntry(dot > 0 ? name.substring(0, dot) : name, name);
+		entry.size = file.length();
+		entry.mimeType = CacheKeys.mimeType(name);
+		entry.created = file.lastModified();
+		entry.lastAccess = file.lastModified();
+
+		return entry;
+	}
+
+	/**
+	 * @return an entry for the partly cached video whose block map this is
+	 */
+	private CacheEntry partialFor(String name) {
+
+		String filename = name.substring(0, name.length() - SparseFile.MAP_EXTENSION.length());
+		int dot = filename.lastIndexOf('.');
+
+		CacheEntry entry = new CacheEntry(dot > 0 ? filename.substring(0, dot) : filename, filename);
+		SparseFile file = SparseFile.open(directory, filename);
+
+		try {
+			entry.size = file.getPresentBytes();
+		} finally {
+			file.release();
+		}
+		entry.mimeType = CacheKeys.mimeType(filename);
+		entry.created = new File(directory, name).lastModified();
+		entry.lastAccess = entry.created;
+
+		return entry;
+	}
+
+	/**
+	 * Decides whether a new resource is worth keeping over the one that would be evicted for it.
+	 */
+	public interface AdmissionPolicy {
+
+		/**
+		 * Called every time a key is requested or written.
+		 */
+		public abstract void record(String key);
+
+		/**
+		 * @return true if the candidate should be kept in favor of the victim
+		 */
+		public abstract boolean admit(String candidate, String victim);
+	}
+
+	/**
+	 * A snapshot of the cache counters.
+	 */
+	public static class Stats {
+
+		public long hits, misses, evictions, rejections;
+		public long size, maxSize;
+		public int count, partial;
+
+		@Override
+		public String toString() {
+
+			return "hits=" + hits + " misses=" + misses + " evictions=" + evictions + " rejections=" + rejections
+					+ " size=" + size + "/" + maxSize + " count=" + count + " partial=" + partial;
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package com.saul.power.mymediaplayer.utils;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Progress and timing of a single download.  The download thread reports
+ * every write here and listeners are told about it at most once every
+ * UPDATE_INTERVAL milliseconds, plus once when the download is over.
+ *
+ * Listeners are called on the download thread.
+ *
+ * @author Saul Howard
+ *
+ */
+public class DownloadProgress {
+
+	// the least time between two progress updates, in milliseconds
+	public static final long UPDATE_INTERVAL = 250;
+
+	public enum Outcome { RUNNING, COMPLETE, FAILED, CANCELLED }
+
+	// the progress the download on the current thread reports to
+	private static final ThreadLocal<DownloadProgress> current = new ThreadLocal<DownloadProgress>();
+
+	public final String url;
+
+	private final List<OnProgressListener> listeners = new CopyOnWriteArrayList<OnProgressListener>();
+
+	private final long started = System.currentTimeMillis();
+	private long firstByte = -1, finished = -1;
+
+	// bytes on disk, including any resumed from an earlier attempt
+	private long bytes, resumed, total = -1;
+	private int retries;
+
+	// bytes per second since the previous update
+	private long throughput;
+	private long lastUpdate, lastUpdateBytes;
+
+	private volatile Outcome outcome = Outcome.RUNNING;
+
+	public DownloadProgress(String url) {
+
+		this.url = url;
+	}
+
+	/**
+	 * Adds a listener.  If the download is already over the listener is only
+	 * told about the outcome.
+	 */
+	public void addListener(OnProgressListener listener) {
+
+		listeners.add(listener);
+
+		if (outcome != Outcome.RUNNING)
+			listener.onDownloadFinished(this);
+	}
+
+	public void removeListener(OnProgressListener listener) {
+
+		listeners.remove(listener);
+	}
+
+	/**
+	 * @return the bytes of the resource on disk so far
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return the length of the resource or -1 if the server didn't say
+	 */
+	public synchronized long getTotal() {
+		return total;
+	}
+
+	/**
+	 * @return a value between 0 and 100, or -1 while the length is unknown
+	 */
+	public synchronized int getPercent() {
+
+		if (total <= 0)
+			return -1;
+
+		return (int) Math.min(100, bytes * 100 / total);
+	}
+
+	/**
+	 * @return the bytes per second over the last update interval
+	 */
+	public synchronized long getThroughput() {
+		return throughput;
+	}
+
+	/**
+	 * @return the bytes per second downloaded in this attempt, resumed bytes aside
+	 */
+	public synchronized long getAverageThroughput() {
+
+		long end = finished >= 0 ? finished : System.currentTimeMillis();
+		long elapsed = end - (firstByte >= 0 ? firstByte : started);
+
+		return elapsed <= 0 ? 0 : (bytes - resumed) * 1000 / elapsed;
+	}
+
+	/**
+	 * @return milliseconds from the start of the download to its first byte, -1 if none arrived yet
+	 */
+	public synchronized long getTimeToFirstByte() {
+
+		return firstByte < 0 ? -1 : firstByte - started;
+	}
+
+	/**
+	 * @return the number of times the download, or one of its segments, started over
+	 */
+	public synchronized int getRetries() {
+		return retries;
+	}
+
+	public Outcome getOutcome() {
+		return outcome;
+	}
+
+	@Override
+	public synchronized String toString() {
+
+		return url + " " + outcome + " " + bytes + "/" + total + " bytes, " + throughput + " B/s now, "
+				+ getAverageThroughput() + " B/s average, first byte after " + getTimeToFirstByte() + "ms, "
+				+ retries + " retries";
+	}
+
+	/**
+	 * Makes the progress the one that downloads on this thread report to.
+	 *
+	 * @param progress null to detach the current one
+	 */
+	static void attach(DownloadProgress progress) {
+
+		if (progress != null)
+			current.set(progress);
+		else
+			current.remove();
+	}
+
+	/**
+	 * @return the progress of the download running on this thread, null if there is none
+	 */
+	static DownloadProgress current() {
+
+		return current.get();
+	}
+
+	/**
+	 * Called once the response says how long the resource is.
+	 *
+	 * @param length the total length of the resource, -1 if unknown
+	 * @param offset the bytes already on disk from an earlier attempt
+	 */
+	synchronized void onStart(long length, long offset) {
+
+		total = length;
+		bytes = offset;
+		resumed = offset;
+		lastUpdateBytes = offset;
+	}
+
+	synchronized void onRetry() {
+
+		retries++;
+	}
+
+	void onBytes(int count) {
+
+		synchronized (this) {
+
+			long now = System.currentTimeMillis();
+
+			if (firstByte < 0) {
+				firstByte = now;
+				lastUpdate = now;
+			}
+
+			bytes += count;
+
+			if (now - lastUpdate < UPDATE_INTERVAL)
+				return;
+
+			throughput = (bytes - lastUpdateBytes) * 1000 / (now - lastUpdate);
+			lastUpdate = now;
+			lastUpdateBytes = bytes;
+		}
+
+		for (OnProgressListener listener : listeners)
+			listener.onDownloadProgress(this);
+	}
+
+	void finish(Outcome result) {
+
+		synchronized (this) {
+
+			if (outcome != Outcome.RUNNING)
+				return;
+
+			finished = System.currentTimeMillis();
+			outcome = result;
+		}
+
+		for (OnProgressListener listener : listeners)
+			listener.onDownloadFinished(this);
+	}
+
+	public interface OnProgressListener {
+
+		/**
+		 * Called at most once every UPDATE_INTERVAL milliseconds while bytes arrive.
+		 */
+		public abstract void onDownloadProgress(DownloadProgress progress);
+
+		/**
+		 * Called once when the download completes, fails or is cancelled.
+		 */
+		public abstract void onDownloadFinished(DownloadProgress progress);
+	}
+}
@@ -0,0 +1,240 @@
+package com.saul.power.mymediaplayer.utils;
+
+import java.io.InterruptedIOException;
+
+import android.util.Log;
+
+/**
+ * Shares the connection between the downloads the viewer is waiting on and
+ * the ones running in the background.  Every transfer reports its progress
+ * here, which keeps a running estimate of the throughput.  Background
+ * transfers are held to a share of that throughput while a foreground
+ * download is running, and stop altogether while playback is buffering.
+ *
+ * @author Saul Howard
+ *
+ */
+public class DownloadScheduler {
+
+	private static final String TAG = "DownloadScheduler";
+
+	// throughput is sampled over windows of this many milliseconds
+	private static final long SAMPLE_WINDOW = 500;
+
+	// weight of the newest sample in the moving average
+	private static final double SMOOTHING = 0.3;
+
+	// the estimated capacity loses this fraction per sample when throughput drops
+	private static final double CAPACITY_DECAY = 0.02;
+
+	// background transfers never crawl slower than this, in bytes per second
+	private static final long MIN_BACKGROUND_RATE = 32 * 1024;
+
+	// how often a paused background transfer checks whether buffering ended
+	private static final long PAUSE_POLL = 100;
+
+	private static final ThreadLocal<Boolean> background = new ThreadLocal<Boolean>();
+
+	private static volatile float backgroundShare = 0.25f;
+	private static volatile boolean buffering;
+
+	// bytes per second
+	private static double throughput, capacity;
+
+	private static long windowStart, windowBytes;
+
+	// token bucket for background transfers
+	private static double tokens;
+	private static long lastRefill;
+
+	/**
+	 * Limits background downloads to a fraction of the measured throughput
+	 * while a foreground download is running.
+	 *
+	 * @param share between 0 and 1, 1 lets background downloads run unthrottled
+	 */
+	public static void setBackgroundShare(float share) {
+
+		backgroundShare = Math.max(0f, Math.min(1f, share));
+	}
+
+	public static float getBackgroundShare() {
+		return backgroundShare;
+	}
+
+	/**
+	 * Tells the scheduler that playback stalled waiting for data, background
+	 * downloads are paused until it resumes.
+	 */
+	public static void setBuffering(boolean isBuffering) {
+
+		if (buffering != isBuffering)
+			Log.i(TAG, isBuffering ? "Playback buffering, pausing background downloads" : "Playback resumed");
+
+		buffering = isBuffering;
+	}
+
+	public static boolean isBuffering() {
+		return buffering;
+	}
+
+	/**
+	 * @return the smoothed throughput over all downloads in bytes per second
+	 */
+	public static synchronized long getThroughput() {
+		return (long) throughput;
+	}
+
+	/**
+	 * Marks the downloads made on the current thread as background work.
+	 * Must be reset once the thread is done, as pool threads are reused.
+	 */
+	static void setBackground(boolean isBackground) {
+
+		if (isBackground)
+			background.set(Boolean.TRUE);
+		else
+			background.remove();
+	}
+
+	static boolean isBackground() {
+
+		return background.get() != null;
+	}
+
+	/**
+	 * Called by the transfers after every write of downloaded bytes, bytes
+	 * copied from memory or the disk aren't counted.  Blocks background transfers
+	 * for as long as they are over their share.
+	 */
+	static void onTransferred(int bytes) throws InterruptedIOException {
+
+		long wait = record(bytes, isBackground());
+
+		try {
+
+			if (wait > 0)
+				Thread.sleep(wait);
+
+			while (buffering && isBackground())
+				Thread.sleep(PAUSE_POLL);
+
+		} catch (InterruptedException e) {
+
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Download interrupted");
+		}
+	}
+
+	/**
+	 * @return the milliseconds the caller has to wait before sending more
+	 */
+	private static synchronized long record(int bytes, boolean isBackground) {
+
+		long now = System.currentTimeMillis();
+
+		if (windowStart == 0)
+			windowStart = now;
+
+		windowBytes += bytes;
+
+		long elapsed = now - windowStart;
+
+		if (elapsed >= SAMPLE_WINDOW) {
+
+			double sample = windowBytes * 1000.0 / elapsed;
+
+			throughput = throughput == 0 ? sample : SMOOTHING * sample + (1 - SMOOTHING) * throughput;
+			capacity = Math.max(throughput, capacity * (1 - CAPACITY_DECAY));
+
+			windowStart = now;
+			windowBytes = 0;
+		}
+
+		if (!isBackground || backgroundShare >= 1f || CacheUtils.getForegroundDownloads() == 0) {
+			lastRefill = now;
+			return 0;
+		}
+
+		double rate = Math.max(MIN_BACKGROUND_RATE, capacity * backgroundShare);
+
+		// allow a burst of up to one second worth of bytes
+		tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1000);
+		lastRefill = now;
+		tokens -= bytes;
+
+		return tokens >= 0 ? 0 : (long) (-tokens * 1000 / rate);
+	}
+
+	/**
+	 * Decides how many connections a single download uses.  The limit grows
+	 * by one while adding a connection makes the download faster and is
+	 * halved when throughput drops or a connection fails.
+	 */
+	static class ConcurrencyLimit {
+
+		// a change in throughput smaller than this is treated as noise
+		private static final double GAIN = 1.1, LOSS = 0.75;
+
+		private final int max;
+		private int limit;
+
+		private long start, bytes;
+		private double rate;
+
+		ConcurrencyLimit(int initial, int max) {
+
+			this.max = max;
+			this.limit = Math.max(1, Math.min(initial, max));
+		}
+
+		synchronized int get() {
+
+			// a stalled player needs every byte, background work keeps to one connection
+			if (buffering && isBackground())
+				return 1;
+
+			return limit;
+		}
+
+		/**
+		 * Called whenever a connection finishes a segment.
+		 */
+		synchronized void onSegment(long segmentBytes) {
+
+			long now = System.currentTimeMillis();
+
+			if (start == 0)
+				start = now;
+
+			bytes += segmentBytes;
+
+			// wait for every connection to have reported before judging the limit
+			if (now - start < SAMPLE_WINDOW * 2)
+				return;
+
+			double sample = bytes * 1000.0 / (now - start);
+
+			if (rate == 0 || sample > rate * GAIN) {
+
+				if (limit < max)
+					limit++;
+
+			} else if (sample < rate * LOSS) {
+
+				limit = Math.max(1, limit / 2);
+			}
+
+			Log.i(TAG, "Segment throughput " + (long) sample + " B/s, using " + limit + " connections");
+
+			rate = sample;
+			start = now;
+			bytes = 0;
+		}
+
+		synchronized void onFailure() {
+
+			limit = Math.max(1, limit / 2);
+		}
+	}
+}
@@ -1,12 +1,22 @@
 package com.saul.power.mymediaplayer.utils;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
 
 import android.os.Environment;
 import android.util.Log;
@@ -16,21 +26,102 @@ public class FileIO {
 	private static final String TAG = "FileIO";
 	
 	public static final String STORAGE_PATH = "/videos/";
+	
+	public static final String PARTIAL_EXTENSION = ".part";
+	public static final String RESUME_EXTENSION = ".resume";
+	public static final String TEMP_EXTENSION = ".tmp";
+	
+	// bytes written between syncs under FsyncPolicy.PERIODIC
+	public static final long SYNC_INTERVAL = 4 * 1024 * 1024;
+	
+	private static volatile FsyncPolicy fsyncPolicy = FsyncPolicy.ON_COMPLETE;
+	
+	private static boolean swept = false;
+	
+	// created on first use, after that every lookup is answered without touching storage
+	private static volatile File directory;
+	
+	// the largest file retrieveFromDisc will read onto the heap
+	public static final long MAX_RETRIEVE_SIZE = 4 * 1024 * 1024;
+	
+	private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+	
+	// left free on the volume for the rest of the device
+	public static final long MIN_FREE_SPACE = 32 * 1024 * 1024;
+	
+	// bytes promised to downloads in flight, see reserveSpace
+	private static long reserved;
+
+	public static FsyncPolicy getFsyncPolicy() {
+		return fsyncPolicy;
+	}
+
+	public static void setFsyncPolicy(FsyncPolicy policy) {
+		fsyncPolicy = policy;
+	}
 
 	public static File getExternalDirectory() {
 
+		File dataDir = directory;
+		
+		if (dataDir != null)
+			return dataDir;
+		
 		String dir = Environment.getExternalStorageDirectory().getAbsolutePath();
-		File dataDir = new File(dir + STORAGE_PATH);
+		dataDir = new File(dir + STORAGE_PATH);
 		
 		if (!dataDir.exists())
 			dataDir.mkdirs();
 		
+		// try again next time if storage wasn't available
+		if (dataDir.isDirectory())
+			directory = dataDir;
+		
 		return  dataDir;
 	}
 
 	public static String loadRemoteData(String link, String filename) {
 		
+		return loadRemoteData(link, filename, null);
+	}
+
+	/**
+	 * Downloads the link into the storage directory, resuming a previous partial
+	 * download if there is one.
+	 * 
+	 * @param link
+	 * @param filename
+	 * @param validators filled in with the freshness headers of the response, may be null
+	 * @return the absolute path of the file or an empty string on failure
+	 */
+	public static String loadRemoteData(String link, String filename, Validators validators) {
+		
+		return load(link, filename, validators, -1);
+	}
+	
+	/**
+	 * Downloads only the first bytes of the link into the partial file, ready
+	 * to be resumed by a later call to loadRemoteData.  A resource that fits
+	 * in the limit is completed like a regular download.
+	 * 
+	 * @param limit the number of bytes to fetch from the start of the resource
+	 * @return the absolute path of the partial (or complete) file or an empty string on failure
+	 */
+	public static String loadRemoteHead(String link, String filename, long limit) {
+		
+		return load(link, filename, null, Math.max(1, limit));
+	}
+	
+	/**
+	 * @param limit the number of leading bytes to stop at, -1 for the whole resource
+	 */
+	private static String load(String link, String filename, Validators validators, long limit) {
+		
 		File outputFile;
+		HttpURLConnection urlConnection = null;
+		InputStream inputStream = null;
+		RandomAccessFile fileOutput = null;
+		long reservation = 0;
 		
 		try {
             
@@ -38,77 +129,722 @@ public class FileIO {
 			
 			File dataDir = getExternalDirectory();
 			
-			// Deletes the file if it exists
 			outputFile = new File(dataDir, filename);
-			outputFile.delete();
 			
-			//this will be used to write the downloaded data into the file we created
-	        FileOutputStream fileOutput = new FileOutputStream(outputFile);
+			// bytes are written to the partial file and only renamed once complete
+			File partFile = new File(dataDir, filename + PARTIAL_EXTENSION);
+			File markerFile = new File(dataDir, filename + RESUME_EXTENSION);
 			
-	        URL url = new URL(link);
-	        
-	        //create the new connection
-	        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+			ResumeMarker marker = ResumeMarker.read(markerFile);
+			long offset = marker != null ? resumeOffset(marker, partFile) : 0;
+			
+			if (offset == 0)
+				partFile.delete();
+			
+			if (marker != null && marker.length > 0 && offset == marker.length) {
+				
+				if (validators != null)
+					validators.checksum = Checksums.compute(partFile);
+				
+				return completeDownload(partFile, markerFile, outputFile);
+			}
+			
+			if (limit >= 0 && offset >= limit)
+				return partFile.getAbsolutePath();
+			
+	        //create the new connection, reusing an idle one to the host if there is one
+	        urlConnection = Connections.open(link);
 	        
-	        //set up some things on the connection
-	        urlConnection.setRequestMethod("GET");
+	        if (offset > 0) {
+	        	
+	        	Log.i(TAG, "Resuming download at byte " + offset);
+	        	
+	        	urlConnection.setRequestProperty("Range", "bytes=" + offset + "-" + (limit >= 0 ? String.valueOf(limit - 1) : ""));
+	        	
+	        	// the server sends the whole file again if it changed since the partial was written
+	        	if (marker.validator != null)
+	        		urlConnection.setRequestProperty("If-Range", marker.validator);
+	        	
+	        } else if (limit >= 0) {
+	        	
+	        	urlConnection.setRequestProperty("Range", "bytes=0-" + (limit - 1));
+	        }
 	        
 	        //and connect!
-	        urlConnection.connect();
+	        int responseCode = Connections.connect(urlConnection);
+	        boolean append = false;
+	        
+	        long[] range = null;
+	        
+	        if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+	        	
+	        	range = parseContentRange(urlConnection.getHeaderField("Content-Range"));
+	        	
+	        	// only append if the server picked up exactly where we left off
+	        	boolean matches = range != null && range[0] == offset
+	        			&& (offset == 0 || marker.length < 0 || range[1] == marker.length);
+	        	
+	        	if (!matches) {
+	        		
+	        		onRetry();
+	        		Connections.release(urlConnection);
+	        		urlConnection = null;
+	        		partFile.delete();
+	        		markerFile.delete();
+	        		
+	        		return offset > 0 ? load(link, filename, validators, limit) : "";
+	        	}
+	        	
+	        	append = offset > 0;
+	        	
+	        } else if (responseCode == HTTP_RANGE_NOT_SATISFIABLE && offset > 0) {
+	        	
+	        	// the partial file is stale or already complete, start over
+	        	onRetry();
+	        	Connections.release(urlConnection);
+	        	urlConnection = null;
+	        	partFile.delete();
+	        	markerFile.delete();
+	        	
+	        	return load(link, filename, validators, limit);
+	        	
+	        } else if (responseCode != HttpURLConnection.HTTP_OK) {
+	        	
+	        	throw new IOException("Unexpected response " + responseCode + " for " + link);
+	        }
+	        
+	        if (validators != null)
+	        	validators.update(urlConnection);
+	        
+	        if (!append) {
+	        	
+	        	// server ignored the range (or this is a fresh download), take the full body
+	        	marker = new ResumeMarker();
+	        	marker.validator = getValidator(urlConnection);
+	        	marker.length = range != null ? range[1] : urlConnection.getContentLength();
+	        	marker.write(markerFile);
+	        }
+	        
+	        long start = append ? offset : 0;
+	        long end = limit >= 0 ? limit : marker.length;
+	        
+	        if (marker.length > 0)
+	        	end = Math.min(end, marker.length);
+	        
+	        //refuse a download that can't fit before any of it is transferred
+	        reservation = reserveSpace(filename, end - start);
+	        
+	        DownloadProgress progress = DownloadProgress.current();
+	        
+	        if (progress != null)
+	        	progress.onStart(marker.length, start);
+	        
+	        //this will be used to write the downloaded data into the file we created
+	        fileOutput = new RandomAccessFile(partFile, "rw");
+	        
+	        if (!append)
+	        	fileOutput.setLength(0);
+	        
+	        //a full download is sized up front so the filesystem can lay it out in one piece
+	        if (limit < 0 && marker.length > 0 && !marker.preallocated) {
+	        	
+	        	fileOutput.setLength(marker.length);
+	        	marker.preallocated = true;
+	        	marker.written = start;
+	        	marker.write(markerFile);
+	        }
 	        
 	        //this will be used in reading the data from the internet
-	        InputStream inputStream = urlConnection.getInputStream();
+	        inputStream = urlConnection.getInputStream();
 
-	        //create a buffer...
-	        byte[] buffer = new byte[1024];
-	        int bufferLength = 0; //used to store a temporary size of the buffer
+	        //hash the bytes as they are copied, a resumed download reads back what it already has
+	        CRC32 crc = validators != null && limit < 0 ? new CRC32() : null;
+	        
+	        if (crc != null && append)
+	        	Checksums.update(crc, partFile, offset);
 	        
-	        //now, read through the input buffer and write the contents to the file
-	        while ((bufferLength = inputStream.read(buffer)) > 0) {
+	        //copy through a pooled direct buffer straight into the file channel
+	        long position = start;
+	        
+	        if (!marker.preallocated) {
+	        	
+	        	position += transfer(inputStream, fileOutput.getChannel(), start, limit >= 0 ? limit - start : -1, crc);
+	        	
+	        } else {
+	        	
+	        	//the length of the file no longer tells how far it got, the marker does
+	        	long chunk, copied;
 	        	
-                //add the data in the buffer to the file in the file output stream (the file on the sd card
-                fileOutput.write(buffer, 0, bufferLength);
+	        	do {
+	        		
+	        		chunk = Math.min(SYNC_INTERVAL, end - position);
+	        		copied = transfer(inputStream, fileOutput.getChannel(), position, chunk, crc);
+	        		position += copied;
+	        		
+	        		//whatever the policy, the marker may only count bytes that are on storage,
+	        		//a crash would otherwise leave it pointing past zero-filled preallocation
+	        		fileOutput.getChannel().force(false);
+	        		
+	        		marker.written = position;
+	        		marker.write(markerFile);
+	        		
+	        		//written bytes show up in the free space, they needn't be reserved as well
+	        		releaseSpace(Math.min(copied, reservation));
+	        		reservation -= Math.min(copied, reservation);
+	        		
+	        	} while (copied == chunk && position < end);
 	        }
 	        
+	        //make sure the bytes are on storage before the file is renamed into place
+	        sync(fileOutput.getChannel());
+	        
 	        //close the output stream when done
 	        fileOutput.close();
+	        fileOutput = null;
+	        
+	        // the rest is left for a later download to resume
+	        if (limit >= 0 && (marker.length < 0 || position < marker.length))
+	        	return partFile.getAbsolutePath();
+	        
+	        if (marker.length > 0 && position != marker.length)
+	        	throw new IOException("Connection closed at " + position + " of " + marker.length + " bytes");
+	        
+	        if (crc != null)
+	        	validators.checksum = crc.getValue();
+	        
+	        return completeDownload(partFile, markerFile, outputFile);
 
 		} catch (Exception e) {
 	        e.printStackTrace();
 	        return "";
+		} finally {
+			try {
+				if (fileOutput != null)
+					fileOutput.close();
+			} catch (IOException e) {}
+			
+			releaseSpace(reservation);
+			
+			// reads the error body too, so a failed download doesn't hold on to its socket
+			if (urlConnection != null)
+				Connections.release(urlConnection, inputStream);
 		}
+	}
+	
+	/**
+	 * @return the number of bytes a download can resume from, 0 if the partial file has to start over
+	 */
+	private static long resumeOffset(ResumeMarker marker, File partFile) {
+		
+		if (!partFile.exists())
+			return 0;
+		
+		// a file sized up front only holds what the marker says was written
+		if (marker.preallocated)
+			return Math.max(0, marker.written);
+		
+		return partFile.length();
+	}
+	
+	/**
+	 * @return the number of leading bytes an interrupted download of the file left behind
+	 */
+	static long getPartialLength(String filename) {
+		
+		File dataDir = getExternalDirectory();
+		ResumeMarker marker = ResumeMarker.read(new File(dataDir, filename + RESUME_EXTENSION));
+		
+		return marker != null ? resumeOffset(marker, new File(dataDir, filename + PARTIAL_EXTENSION)) : 0;
+	}
+	
+	/**
+	 * Sets aside room on the volume for the bytes a download is about to write,
+	 * asking the cache to evict files if there isn't enough.  Downloads call
+	 * this once they know their length and before they write anything, so one
+	 * that can never finish is refused without wasting the bandwidth.  The room
+	 * is counted against every other download until releaseSpace is called.
+	 * 
+	 * @param filename the file being written, which isn't evicted to make room for itself
+	 * @param bytes the number of bytes to be written, nothing is checked if it isn't known
+	 * @return the number of bytes reserved, to be handed to releaseSpace
+	 * @throws IOException if there isn't room even after evicting
+	 */
+	static long reserveSpace(String filename, long bytes) throws IOException {
+		
+		if (bytes <= 0)
+			return 0;
+		
+		File dataDir = getExternalDirectory();
+		
+		long needed;
+		
+		synchronized (FileIO.class) {
+			
+			needed = reserved + bytes + MIN_FREE_SPACE;
+			
+			if (dataDir.getUsableSpace() >= needed) {
+				reserved += bytes;
+				return bytes;
+			}
+		}
+		
+		//not under the lock, the cache loads before it evicts and sweeps with it held
+		Log.i(TAG, "Making room for " + bytes + " bytes of " + filename);
+		
+		if (!CacheUtils.getCache().makeRoom(needed, filename))
+			throw new IOException("Not enough space for " + bytes + " bytes of " + filename + ", " + dataDir.getUsableSpace() + " free");
+		
+		synchronized (FileIO.class) {
+			reserved += bytes;
+		}
+		
+		return bytes;
+	}
+	
+	static void releaseSpace(long bytes) {
+		
+		synchronized (FileIO.class) {
+			reserved -= bytes;
+		}
+	}
+	
+	/**
+	 * Asks the server whether the cached copy is still current using the
+	 * entry's ETag and Last-Modified validators.  On a 304 the entry's
+	 * validators and expiry are updated from the response.
+	 * 
+	 * @param link
+	 * @param entry
+	 * @return true if the cached copy is still current, false if it changed
+	 * @throws IOException if the server could not be reached
+	 */
+	public static boolean revalidate(String link, CacheEntry entry) throws IOException {
+		
+		if (entry.etag == null && entry.lastModified == null)
+			return false;
+		
+		HttpURLConnection urlConnection = Connections.open(link);
+		
+		try {
+			
+			if (entry.etag != null)
+				urlConnection.setRequestProperty("If-None-Match", entry.etag);
+			if (entry.lastModified != null)
+				urlConnection.setRequestProperty("If-Modified-Since", entry.lastModified);
+			
+			if (Connections.connect(urlConnection) != HttpURLConnection.HTTP_NOT_MODIFIED)
+				return false;
+			
+			Validators validators = new Validators();
+			validators.etag = entry.etag;
+			validators.lastModified = entry.lastModified;
+			validators.update(urlConnection);
+			validators.copyTo(entry);
+			
+			return true;
+			
+		} finally {
+			// a changed video is only drained if little of it is left, see Connections
+			Connections.release(urlConnection);
+		}
+	}
+	
+	private static void onRetry() {
+		
+		DownloadProgress progress = DownloadProgress.current();
+		
+		if (progress != null)
+			progress.onRetry();
+	}
+	
+	/**
+	 * Copies from the stream into the channel at the given position using a
+	 * pooled direct buffer.  The buffer is filled completely before each write,
+	 * so the file sees one write per BufferPool.BUFFER_SIZE bytes.
+	 * 
+	 * @param input the download to read from
+	 * @param output the file to write to
+	 * @param position where in the file the first byte goes
+	 * @param limit the most bytes to copy, -1 to copy until the end of the stream
+	 * @param checksum updated with every byte copied, may be null
+	 * @return the number of bytes copied
+	 * @throws IOException
+	 */
+	static long transfer(InputStream input, FileChannel output, long position, long limit, Checksum checksum) throws IOException {
+		
+		return copy(input, output, position, limit, checksum, true);
+	}
+	
+	/**
+	 * @param network true if the bytes are downloaded, only those count
+	 * towards the progress and the throughput, and only they are held back
+	 */
+	private static long copy(InputStream input, FileChannel output, long position, long limit, Checksum checksum, boolean network) throws IOException {
+		
+		// the stream is read into a pooled array, a channel around it would allocate its own
+		byte[] staging = BufferPool.acquireArray();
+		ByteBuffer buffer = BufferPool.acquire();
+		DownloadProgress progress = network ? DownloadProgress.current() : null;
+		long written = 0, synced = 0;
+		boolean eof = false;
+		
+		try {
+			
+			while (!eof && (limit < 0 || written < limit)) {
+				
+				buffer.clear();
+				
+				if (limit >= 0 && limit - written < buffer.capacity())
+					buffer.limit((int) (limit - written));
+				
+				while (buffer.hasRemaining()) {
+					
+					int read = input.read(staging, 0, Math.min(staging.length, buffer.remaining()));
+					
+					if (read < 0) {
+						eof = true;
+						break;
+					}
+					
+					if (checksum != null)
+						checksum.update(staging, 0, read);
+					
+					buffer.put(staging, 0, read);
+					
+					// unlike a channel the stream doesn't give up when the thread is interrupted
+					if (Thread.currentThread().isInterrupted())
+						throw new InterruptedIOException("Transfer interrupted");
+				}
+				
+				buffer.flip();
+				
+				int count = buffer.remaining();
+				
+				while (buffer.hasRemaining())
+					written += output.write(buffer, position + written);
+				
+				if (progress != null && count > 0)
+					progress.onBytes(count);
+				
+				// measures throughput and holds back background downloads
+				if (network)
+					DownloadScheduler.onTransferred(count);
+				
+				if (fsyncPolicy == FsyncPolicy.PERIODIC && written - synced >= SYNC_INTERVAL) {
+					output.force(false);
+					synced = written;
+				}
+			}
+			
+		} finally {
+			BufferPool.release(buffer);
+			BufferPool.releaseArray(staging);
+		}
+		
+		return written;
+	}
+	
+	/**
+	 * Returns true if a download for the file was interrupted and can be resumed.
+	 * 
+	 * @param filename
+	 * @return
+	 */
+	public static boolean isPartial(String filename) {
+		
+		return new File(getExternalDirectory(), filename + RESUME_EXTENSION).exists();
+	}
+	
+	/**
+	 * @return true if the interrupted download of the file was fetched in
+	 * segments, which only a SegmentedDownloader can resume
+	 */
+	static boolean isSegmented(String filename) {
+		
+		ResumeMarker marker = ResumeMarker.read(new File(getExternalDirectory(), filename + RESUME_EXTENSION));
+		
+		return marker != null && marker.segments != null;
+	}
+	
+	/**
+	 * Removes the file along with any partial download, resume marker or cached blocks.
+	 * 
+	 * @param filename
+	 */
+	public static void deleteFromDisc(String filename) {
+		
+		File dataDir = getExternalDirectory();
+		
+		new File(dataDir, filename).delete();
+		new File(dataDir, filename + PARTIAL_EXTENSION).delete();
+		new File(dataDir, filename + RESUME_EXTENSION).delete();
+		
+		SparseFile.delete(dataDir, filename);
+	}
+	
+	static String completeDownload(File partFile, File markerFile, File outputFile) throws IOException {
+		
+		commit(partFile, outputFile);
+		
+		markerFile.delete();
 		
 		return outputFile.getAbsolutePath();
 	}
+	
+	/**
+	 * Renames a finished temporary file over its final name.  The rename replaces
+	 * the old file in one step, so readers see either the old or the new file.
+	 */
+	static void commit(File temp, File file) throws IOException {
+		
+		if (temp.renameTo(file))
+			return;
+		
+		// some file systems refuse to rename over an existing file
+		file.delete();
+		
+		if (!temp.renameTo(file))
+			throw new IOException("Could not rename " + temp + " to " + file);
+	}
+	
+	/**
+	 * Forces written bytes onto storage unless the policy is NONE.
+	 */
+	static void sync(FileChannel channel) throws IOException {
+		
+		if (fsyncPolicy != FsyncPolicy.NONE)
+			channel.force(false);
+	}
+	
+	/**
+	 * Deletes files left behind by writes that never finished: temporary files,
+	 * partial downloads whose resume marker is missing and block data without
+	 * its map, or the other way round.  Runs once per process,
+	 * before any download has started.
+	 */
+	public static synchronized void sweepTemporaryFiles() {
+		
+		if (swept)
+			return;
+		
+		swept = true;
+		
+		File dataDir = getExternalDirectory();
+		String[] names = dataDir.list();
+		
+		if (names == null)
+			return;
+		
+		// one listing instead of a stat per file
+		Set<String> present = new HashSet<String>(Arrays.asList(names));
+		
+		for (String name : names) {
+			
+			boolean orphan = name.endsWith(TEMP_EXTENSION);
+			
+			if (name.endsWith(PARTIAL_EXTENSION)) {
+				
+				String filename = name.substring(0, name.length() - PARTIAL_EXTENSION.length());
+				orphan = !present.contains(filename + RESUME_EXTENSION);
+				
+			} else if (name.endsWith(RESUME_EXTENSION)) {
+				
+				String filename = name.substring(0, name.length() - RESUME_EXTENSION.length());
+				orphan = !present.contains(filename + PARTIAL_EXTENSION);
+				
+			} else if (name.endsWith(SparseFile.DATA_EXTENSION)) {
+				
+				String filename = name.substring(0, name.length() - SparseFile.DATA_EXTENSION.length());
+				orphan = !present.contains(filename + SparseFile.MAP_EXTENSION);
+				
+			} else if (name.endsWith(SparseFile.MAP_EXTENSION)) {
+				
+				String filename = name.substring(0, name.length() - SparseFile.MAP_EXTENSION.length());
+				orphan = !present.contains(filename + SparseFile.DATA_EXTENSION);
+			}
+			
+			if (orphan) {
+				Log.i(TAG, "Removing orphaned " + name);
+				new File(dataDir, name).delete();
+			}
+		}
+	}
+	
+	/**
+	 * Picks the value to send in If-Range.  Weak ETags are not allowed there
+	 * so Last-Modified is used instead.
+	 */
+	static String getValidator(HttpURLConnection connection) {
+		
+		String etag = connection.getHeaderField("ETag");
+		
+		if (etag != null && !etag.startsWith("W/"))
+			return etag;
+		
+		return connection.getHeaderField("Last-Modified");
+	}
+	
+	/**
+	 * Parses "bytes start-end/total" into {start, total}.  Total is -1 when
+	 * the server sends '*'.
+	 */
+	static long[] parseContentRange(String contentRange) {
+		
+		if (contentRange == null || !contentRange.startsWith("bytes "))
+			return null;
+		
+		try {
+			
+			int dash = contentRange.indexOf('-');
+			int slash = contentRange.indexOf('/');
+			
+			long start = Long.parseLong(contentRange.substring(6, dash).trim());
+			String total = contentRange.substring(slash + 1).trim();
+			
+			return new long[] { start, total.equals("*") ? -1 : Long.parseLong(total) };
+			
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
 
 	public static String saveToDisc(byte[] data, String filename) {
 		
+		return saveToDisc(new ByteArrayInputStream(data), filename);
+	}
+	
+	/**
+	 * Streams the input into a temporary file, syncs it according to the fsync
+	 * policy and renames it into place.  A crash part way through leaves the
+	 * previous file, if any, untouched.
+	 * 
+	 * @param input the bytes to write, closed by the caller
+	 * @param filename
+	 * @return the absolute path of the file or an empty string on failure
+	 */
+	public static String saveToDisc(InputStream input, String filename) {
+		
 		File dataDir = getExternalDirectory();
 		File outputFile = new File(dataDir, filename);
-		FileOutputStream fos = null;
+		File tempFile = new File(dataDir, filename + TEMP_EXTENSION);
+		RandomAccessFile output = null;
+		
 		try {
-			fos = new FileOutputStream(outputFile);
-			fos.write(data);
-		} catch (Exception e) {} finally {
+			
+			output = new RandomAccessFile(tempFile, "rw");
+			output.setLength(0);
+			
+			// bytes already in hand, the scheduler has no say over them
+			copy(input, output.getChannel(), 0, -1, null, false);
+			sync(output.getChannel());
+			
+			output.close();
+			output = null;
+			
+			commit(tempFile, outputFile);
+			
+		} catch (IOException e) {
+			Log.e(TAG, "Could not save " + filename, e);
+			tempFile.delete();
+			return "";
+		} finally {
 			try {
-				if (fos != null) {
-					fos.flush();
-					fos.close();
-				}
+				if (output != null)
+					output.close();
 			} catch (IOException e1) {}
 		}
+		
 		return outputFile.getAbsolutePath();
 	}
 
+	/**
+	 * Reads a small file onto the heap.  Videos should be read with
+	 * mapFromDisc or openFromDisc instead.
+	 * 
+	 * @param filename
+	 * @return the contents or null if the file is missing or larger than MAX_RETRIEVE_SIZE
+	 */
 	public static byte[] retrieveFromDisc(String filename) {
 		
 		File file = new File(getExternalDirectory(), filename);
 		
 		if (!file.exists())
 			return null;
+		
+		if (file.length() > MAX_RETRIEVE_SIZE) {
+			Log.w(TAG, filename + " is too large to read onto the heap (" + file.length() + " bytes)");
+			return null;
+		}
 			
 		return retrieveFromDisc(file);
 	}
+	
+	/**
+	 * Maps the whole file read only.  The bytes are paged in by the OS as they
+	 * are touched and never copied onto the heap.
+	 * 
+	 * @param filename
+	 * @return the mapped file or null if it doesn't exist
+	 * @throws IOException
+	 */
+	public static MappedByteBuffer mapFromDisc(String filename) throws IOException {
+		
+		return mapFromDisc(filename, 0, -1);
+	}
+	
+	/**
+	 * Maps a window of the file read only.  A single mapping can cover at most
+	 * Integer.MAX_VALUE bytes.
+	 * 
+	 * @param filename
+	 * @param offset the first byte to map
+	 * @param length the number of bytes to map, -1 for the rest of the file
+	 * @return the mapped window or null if the file doesn't exist
+	 * @throws IOException
+	 */
+	public static MappedByteBuffer mapFromDisc(String filename, long offset, long length) throws IOException {
+		
+		File file = new File(getExternalDirectory(), filename);
+		
+		if (!file.exists())
+			return null;
+		
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		
+		try {
+			
+			FileChannel channel = input.getChannel();
+			long size = length < 0 ? channel.size() - offset : Math.min(length, channel.size() - offset);
+			
+			if (offset < 0 || size < 0 || size > Integer.MAX_VALUE)
+				throw new IOException("Cannot map " + size + " bytes at " + offset + " of " + filename);
+			
+			// the mapping stays valid after the channel is closed
+			return channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+			
+		} finally {
+			input.close();
+		}
+	}
+	
+	/**
+	 * Opens a stream over a window of the file without reading it into memory.
+	 * 
+	 * @param filename
+	 * @param offset the first byte to read
+	 * @param length the number of bytes to read, -1 for the rest of the file
+	 * @return the stream or null if the file doesn't exist
+	 * @throws IOException
+	 */
+	public static InputStream openFromDisc(String filename, long offset, long length) throws IOException {
+		
+		File file = new File(getExternalDirectory(), filename);
+		
+		if (!file.exists())
+			return null;
+		
+		return new RangeInputStream(file, offset, length);
+	}
 
 	private static byte[] retrieveFromDisc(File path) {
 		
@@ -116,7 +852,7 @@ public class FileIO {
 		InputStream stream = null;
 		try {
 			stream = getStream(path);
-			data = getBytesFromInputStream(stream);
+			data = getBytesFromInputStream(stream, path.length());
 		} catch (Exception e) {
 			Log.e(TAG, e.getMessage(), e);
 		} finally {
@@ -132,9 +868,9 @@ public class FileIO {
 		return new FileInputStream(path);
 	}
 
-	private static byte[] getBytesFromInputStream(InputStream is) throws IOException {
+	private static byte[] getBytesFromInputStream(InputStream is, long length) throws IOException {
 		
-		long length = is.available();
+		// available() only promises what can be read without blocking, the file length is the real size
 		byte[] bytes = new byte[(int) length];
 		int offset = 0;
 		int numRead = 0;
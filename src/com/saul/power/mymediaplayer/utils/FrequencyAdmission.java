@@ -0,0 +1,106 @@
+package com.saul.power.mymediaplayer.utils;
+
+/**
+ * A TinyLFU style admission policy.  Request frequencies are estimated with a
+ * count-min sketch of 4 bit counters, sixteen to a long, that are halved
+ * periodically, so that popularity fades over time.  A new file is only admitted if it has been
+ * requested more often than the file it would push out.
+ *
+ * @author Saul Howard
+ *
+ */
+public class FrequencyAdmission implements DiskCache.AdmissionPolicy {
+
+	private static final int DEPTH = 4;
+	private static final int MAX_COUNT = 15;
+
+	// the low three bits of every counter, what is left of them after a shift
+	private static final long HALF_MASK = 0x7777777777777777L;
+
+	private static final int[] SEEDS = { 0x97cb3127, 0x2f1a2b4c, 0x5bd1e995, 0x7ed55d16 };
+
+	// counter i of a row is the nibble i % 16 of long i / 16
+	private final long[][] table;
+	private final int mask;
+	private final int sampleSize;
+	private int samples;
+
+	/**
+	 * @param expectedEntries roughly how many distinct files the cache holds
+	 */
+	public FrequencyAdmission(int expectedEntries) {
+
+		int width = 16;
+
+		while (width < expectedEntries * 4)
+			width <<= 1;
+
+		table = new long[DEPTH][width / 16];
+		mask = width - 1;
+		sampleSize = width * 10;
+	}
+
+	@Override
+	public synchronized void record(String key) {
+
+		int hash = spread(key.hashCode());
+
+		for (int i = 0; i < DEPTH; i++) {
+
+			int index = indexOf(hash, i);
+
+			if (count(i, index) < MAX_COUNT)
+				table[i][index >>> 4] += 1L << ((index & 15) << 2);
+		}
+
+		if (++samples >= sampleSize)
+			age();
+	}
+
+	@Override
+	public synchronized boolean admit(String candidate, String victim) {
+
+		return frequency(candidate) > frequency(victim);
+	}
+
+	synchronized int frequency(String key) {
+
+		int hash = spread(key.hashCode());
+		int min = MAX_COUNT;
+
+		for (int i = 0; i < DEPTH; i++)
+			min = Math.min(min, count(i, indexOf(hash, i)));
+
+		return min;
+	}
+
+	/**
+	 * Halves every counter so old popularity doesn't outweigh recent requests.
+	 */
+	private void age() {
+
+		for (long[] row : table) {
+			for (int i = 0; i < row.length; i++)
+				row[i] = (row[i] >>> 1) & HALF_MASK;
+		}
+
+		samples /= 2;
+	}
+
+	private int count(int row, int index) {
+
+		return (int) (table[row][index >>> 4] >>> ((index & 15) << 2)) & 0xf;
+	}
+
+	private int indexOf(int hash, int row) {
+
+		int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private static int spread(int hash) {
+
+		hash ^= (hash >>> 20) ^ (hash >>> 12);
+		return hash ^ (hash >>> 7) ^ (hash >>> 4);
+	}
+}
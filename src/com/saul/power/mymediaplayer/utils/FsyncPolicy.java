@@ -0,0 +1,20 @@
+package com.saul.power.mymediaplayer.utils;
+
+/**
+ * How hard FileIO works to get written bytes onto storage before it reports
+ * a write as done.
+ *
+ * @author Saul Howard
+ *
+ */
+public enum FsyncPolicy {
+
+	// leave flushing to the OS, fastest but a crash can lose recent writes
+	NONE,
+
+	// sync once before a finished file is renamed into place
+	ON_COMPLETE,
+
+	// also sync every FileIO.SYNC_INTERVAL bytes so resumable partials survive a crash
+	PERIODIC
+}
@@ -0,0 +1,486 @@
+package com.saul.power.mymediaplayer.utils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import android.util.Log;
+
+/**
+ * The times of the sync samples (keyframes) of the video track of an MP4,
+ * read from the sample tables in its moov box.  A seek to one of these times
+ * shows a frame without decoding anything before it, which is what makes
+ * fast forward and rewind cheap.
+ *
+ * The index is built from whatever of the video is on disk: the complete file,
+ * the blocks cached so far, or a local file.  Composition offsets and edit
+ * lists are ignored, which moves a time by a frame or two at most.
+ *
+ * @author Saul Howard
+ *
+ */
+public class KeyframeIndex {
+
+	private static final String TAG = "KeyframeIndex";
+
+	// the largest sample table read, a two hour video needs well under a megabyte
+	private static final int MAX_TABLE = 8 * 1024 * 1024;
+
+	private static final int MOOV = type("moov");
+	private static final int TRAK = type("trak");
+	private static final int MDIA = type("mdia");
+	private static final int HDLR = type("hdlr");
+	private static final int MDHD = type("mdhd");
+	private static final int MINF = type("minf");
+	private static final int STBL = type("stbl");
+	private static final int STTS = type("stts");
+	private static final int STSS = type("stss");
+	private static final int VIDE = type("vide");
+
+	// keyframe times in milliseconds, ascending
+	private final int[] times;
+
+	private KeyframeIndex(int[] times) {
+		this.times = times;
+	}
+
+	/**
+	 * Builds the index for a path handed to the MediaPlayer: a url from the
+	 * CacheProxy or a local file.
+	 *
+	 * @return the index, or null if the video isn't an MP4 with keyframes, isn't
+	 * on disk, or its moov box isn't cached yet
+	 */
+	public static KeyframeIndex forPath(String path) {
+
+		Source source = null;
+
+		try {
+
+			source = open(path);
+
+			if (source == null)
+				return null;
+
+			int[] times = parse(source);
+
+			if (times == null || times.length == 0)
+				return null;
+
+			Log.i(TAG, "Indexed " + times.length + " keyframes of " + path);
+
+			return new KeyframeIndex(times);
+
+		} catch (IOException e) {
+			Log.w(TAG, "Could not index the keyframes of " + path, e);
+			return null;
+		} finally {
+			if (source != null)
+				source.close();
+		}
+	}
+
+	public int size() {
+		return times.length;
+	}
+
+	/**
+	 * @return the first keyframe after the position, -1 if there is none
+	 */
+	public int after(int position) {
+
+		int index = upperBound(position);
+
+		return index < times.length ? times[index] : -1;
+	}
+
+	/**
+	 * @return the first keyframe at or after the position, -1 if there is none
+	 */
+	public int atOrAfter(int position) {
+
+		int index = lowerBound(position);
+
+		return index < times.length ? times[index] : -1;
+	}
+
+	/**
+	 * @return the last keyframe before the position, -1 if there is none
+	 */
+	public int before(int position) {
+
+		int index = lowerBound(position) - 1;
+
+		return index >= 0 ? times[index] : -1;
+	}
+
+	/**
+	 * @return the last keyframe at or before the position, -1 if there is none
+	 */
+	public int atOrBefore(int position) {
+
+		int index = upperBound(position) - 1;
+
+		return index >= 0 ? times[index] : -1;
+	}
+
+	/**
+	 * @return the index of the first time at or after the position
+	 */
+	private int lowerBound(int position) {
+
+		int low = 0, high = times.length;
+
+		while (low < high) {
+
+			int mid = (low + high) >>> 1;
+
+			if (times[mid] < position)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		return low;
+	}
+
+	/**
+	 * @return the index of the first time after the position
+	 */
+	private int upperBound(int position) {
+
+		int low = 0, high = times.length;
+
+		while (low < high) {
+
+			int mid = (low + high) >>> 1;
+
+			if (times[mid] <= position)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		return low;
+	}
+
+	/**
+	 * @return the keyframe times of the first video track, null if it has none
+	 * or every sample is a keyframe
+	 */
+	private static int[] parse(Source source) throws IOException {
+
+		long[] moov = find(source, 0, source.length(), MOOV);
+
+		if (moov == null)
+			return null;
+
+		long position = moov[0];
+
+		while (true) {
+
+			long[] trak = find(source, position, moov[1], TRAK);
+
+			if (trak == null)
+				return null;
+
+			int[] times = parseTrack(source, trak);
+
+			if (times != null)
+				return times;
+
+			position = trak[1];
+		}
+	}
+
+	private static int[] parseTrack(Source source, long[] trak) throws IOException {
+
+		long[] mdia = find(source, trak[0], trak[1], MDIA);
+
+		if (mdia == null)
+			return null;
+
+		long[] hdlr = find(source, mdia[0], mdia[1], HDLR);
+
+		// the handler type follows the version, flags and pre-defined fields
+		if (hdlr == null || source.read(hdlr[0] + 8, 4).getInt(0) != VIDE)
+			return null;
+
+		long[] mdhd = find(source, mdia[0], mdia[1], MDHD);
+
+		if (mdhd == null)
+			return null;
+
+		ByteBuffer header = source.read(mdhd[0], 24);
+
+		// version 1 has 64 bit creation and modification times
+		long timescale = header.getInt(header.get(0) == 1 ? 20 : 12) & 0xffffffffL;
+
+		long[] minf = find(source, mdia[0], mdia[1], MINF);
+		long[] stbl = minf == null ? null : find(source, minf[0], minf[1], STBL);
+
+		if (timescale == 0 || stbl == null)
+			return null;
+
+		long[] stss = find(source, stbl[0], stbl[1], STSS);
+		long[] stts = find(source, stbl[0], stbl[1], STTS);
+
+		if (stss == null || stts == null)
+			return null;
+
+		return keyframeTimes(readTable(source, stss, 4), readTable(source, stts, 8), timescale);
+	}
+
+	/**
+	 * Walks the runs of sample durations alongside the ascending keyframe sample numbers.
+	 */
+	private static int[] keyframeTimes(ByteBuffer stss, ByteBuffer stts, long timescale) throws IOException {
+
+		int count = stss.getInt(4), runs = stts.getInt(4);
+		int[] times = new int[count];
+		int found = 0, run = 0;
+
+		// the number of the first sample in the current run and its decode time
+		long first = 1, time = 0, last = 0;
+
+		for (int i = 0; i < count; i++) {
+
+			long sample = stss.getInt(8 + i * 4) & 0xffffffffL;
+
+			if (sample <= last)
+				throw new IOException("Keyframe samples out of order at " + sample);
+
+			last = sample;
+
+			while (run < runs && sample >= first + (stts.getInt(8 + run * 8) & 0xffffffffL)) {
+
+				long samples = stts.getInt(8 + run * 8) & 0xffffffffL;
+
+				time += samples * (stts.getInt(12 + run * 8) & 0xffffffffL);
+				first += samples;
+				run++;
+			}
+
+			// the sample tables disagree, the keyframes after this one can't be timed
+			if (run == runs)
+				break;
+
+			long delta = stts.getInt(12 + run * 8) & 0xffffffffL;
+
+			times[found++] = (int) ((time + (sample - first) * delta) * 1000 / timescale);
+		}
+
+		return found == count ? times : Arrays.copyOf(times, found);
+	}
+
+	/**
+	 * Reads a full box made of a count followed by that many entries.
+	 */
+	private static ByteBuffer readTable(Source source, long[] box, int entrySize) throws IOException {
+
+		long length = box[1] - box[0];
+
+		if (length < 8 || length > MAX_TABLE)
+			throw new IOException("Sample table of " + length + " bytes");
+
+		ByteBuffer table = source.read(box[0], (int) length);
+		long entries = table.getInt(4) & 0xffffffffL;
+
+		if (8 + entries * entrySize > length)
+			throw new IOException("Sample table of " + entries + " entries in " + length + " bytes");
+
+		return table;
+	}
+
+	/**
+	 * Looks for a box of the type among the boxes between start and end.
+	 *
+	 * @return the offset of its payload and the offset of its end, or null if there isn't one
+	 */
+	private static long[] find(Source source, long start, long end, int type) throws IOException {
+
+		long position = start;
+
+		while (end - position >= 8) {
+
+			ByteBuffer header = source.read(position, (int) Math.min(16, end - position));
+
+			long size = header.getInt(0) & 0xffffffffL;
+			int headerSize = 8;
+
+			if (size == 1) {
+
+				if (header.limit() < 16)
+					throw new IOException("Truncated box header at " + position);
+
+				size = header.getLong(8);
+				headerSize = 16;
+
+			} else if (size == 0) {
+
+				// the box runs to the end of its parent
+				size = end - position;
+			}
+
+			if (size < headerSize || position + size > end)
+				throw new IOException("Malformed box at " + position);
+
+			if (header.getInt(4) == type)
+				return new long[] { position + headerSize, position + size };
+
+			position += size;
+		}
+
+		return null;
+	}
+
+	private static int type(String name) {
+
+		int type = 0;
+
+		for (int i = 0; i < 4; i++)
+			type = type << 8 | name.charAt(i);
+
+		return type;
+	}
+
+	/**
+	 * Finds where the bytes of the video are on disk.
+	 *
+	 * @return the source to read from, null if the video isn't on disk
+	 */
+	private static Source open(String path) throws IOException {
+
+		String filename = CacheProxy.getInstance().getFilename(path);
+
+		if (filename == null) {
+
+			File file = new File(path);
+
+			return file.isFile() ? new FileSource(file) : null;
+		}
+
+		File dataDir = FileIO.getExternalDirectory();
+		File complete = new File(dataDir, filename);
+
+		if (complete.isFile())
+			return new FileSource(complete);
+
+		if (!SparseFile.exists(dataDir, filename))
+			return null;
+
+		SparseFile file = SparseFile.open(dataDir, filename);
+
+		if (file.getLength() > 0)
+			return new SparseSource(file);
+
+		file.release();
+
+		return null;
+	}
+
+	private interface Source {
+
+		/**
+		 * @return a buffer holding the bytes from the position, throws if they aren't all there
+		 */
+		ByteBuffer read(long position, int length) throws IOException;
+
+		long length();
+
+		void close();
+	}
+
+	private static class FileSource implements Source {
+
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+
+		FileSource(File path) throws IOException {
+
+			file = new RandomAccessFile(path, "r");
+			channel = file.getChannel();
+		}
+
+		@Override
+		public ByteBuffer read(long position, int length) throws IOException {
+
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+
+			while (buffer.hasRemaining()) {
+
+				if (channel.read(buffer, position + buffer.position()) < 0)
+					throw new EOFException("Read past the end of the file at " + position);
+			}
+
+			buffer.flip();
+
+			return buffer;
+		}
+
+		@Override
+		public long length() {
+
+			try {
+				return channel.size();
+			} catch (IOException e) {
+				return 0;
+			}
+		}
+
+		@Override
+		public void close() {
+
+			try {
+				file.close();
+			} catch (IOException e) {
+				Log.w(TAG, "Could not close the video", e);
+			}
+		}
+	}
+
+	/**
+	 * Reads the blocks cached so far.
+	 */
+	private static class SparseSource implements Source {
+
+		private final SparseFile file;
+
+		SparseSource(SparseFile file) {
+			this.file = file;
+		}
+
+		@Override
+		public ByteBuffer read(long position, int length) throws IOException {
+
+			if (file.available(position) < length)
+				throw new IOException("Bytes at " + position + " of " + file.filename + " aren't cached yet");
+
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+
+			while (buffer.hasRemaining()) {
+
+				if (file.read(position + buffer.position(), buffer) < 0)
+					throw new IOException(file.filename + " was moved or deleted while it was read");
+			}
+
+			buffer.flip();
+
+			return buffer;
+		}
+
+		@Override
+		public long length() {
+			return file.getLength();
+		}
+
+		@Override
+		public void close() {
+			file.release();
+		}
+	}
+}
@@ -0,0 +1,281 @@
+package com.saul.power.mymediaplayer.utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Fetches the start of the videos that are going to be played next, so the
+ * next video starts from disk instead of the network.  Only the first bytes
+ * of each video are downloaded, lower priorities go first and the total is
+ * capped by a byte budget.  The budget counts the heads the queued videos
+ * hold, a video gives its bytes back once it leaves the queue, because it
+ * is played or no longer wanted, or once its head is found evicted.  Prefetches are background downloads, so the
+ * DownloadScheduler holds them to a share of the connection while the video
+ * being watched is downloading and pauses them while it is buffering.
+ *
+ * @author Saul Howard
+ *
+ */
+public class Prefetcher {
+
+	private static final String TAG = "Prefetcher";
+
+	private final long headBytes, budget;
+	private final ThreadPoolExecutor executor;
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	// bytes held by the queued videos plus bytes reserved by prefetches that are running
+	private long spent;
+
+	// the bytes of its head each queued video holds on disk, by url
+	private final Map<String, Long> held = new HashMap<String, Long>();
+
+	// bumped by setQueue so that tasks from an older queue drop out
+	private volatile long generation;
+
+	/**
+	 * @param concurrency the number of videos prefetched at once
+	 * @param headBytes the number of bytes fetched from the start of each video
+	 * @param budget the most bytes prefetched in total
+	 */
+	public Prefetcher(int concurrency, long headBytes, long budget) {
+
+		if (concurrency < 1 || headBytes < 1)
+			throw new IllegalArgumentException("concurrency and headBytes must be positive");
+
+		this.headBytes = headBytes;
+		this.budget = budget;
+
+		executor = new ThreadPoolExecutor(concurrency, concurrency, 30, TimeUnit.SECONDS,
+				new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+
+				Thread thread = new Thread(runnable, TAG);
+				thread.setPriority(Thread.MIN_PRIORITY);
+
+				return thread;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Works out how many bytes cover the first seconds of a video.
+	 *
+	 * @param seconds the length of the start of the video to prefetch
+	 * @param bitrate the bitrate of the video in bits per second
+	 */
+	public static long headBytesFor(int seconds, int bitrate) {
+
+		return (long) seconds * bitrate / 8;
+	}
+
+	/**
+	 * Replaces everything waiting to be prefetched with the given videos, the
+	 * first of which is fetched first.
+	 *
+	 * @param urls the videos in the order they will be played
+	 */
+	public void setQueue(List<String> urls) {
+
+		generation++;
+		executor.getQueue().clear();
+
+		synchronized (this) {
+
+			for (String url : new ArrayList<String>(held.keySet())) {
+				if (!urls.contains(url))
+					release(url);
+			}
+		}
+
+		for (int i = 0; i < urls.size(); i++)
+			prefetch(urls.get(i), i);
+	}
+
+	/**
+	 * Adds a single video to the queue.
+	 *
+	 * @param priority lower values are prefetched first
+	 */
+	public void prefetch(String url, int priority) {
+
+		if (url == null || url.equals(""))
+			return;
+
+		executor.execute(new Task(url, priority, generation, sequence.getAndIncrement()));
+	}
+
+	/**
+	 * Drops everything waiting to be prefetched.
+	 */
+	public void cancel() {
+
+		generation++;
+		executor.getQueue().clear();
+
+		synchronized (this) {
+
+			for (String url : new ArrayList<String>(held.keySet()))
+				release(url);
+		}
+	}
+
+	public void shutdown() {
+
+		cancel();
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @return the bytes the queued videos hold and the running prefetches may still fetch
+	 */
+	public synchronized long getSpent() {
+		return spent;
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Takes up to the wanted number of bytes out of the budget.
+	 *
+	 * @return the number of bytes the prefetch may fetch, 0 once the budget is used up
+	 */
+	private synchronized long reserve(long wanted) {
+
+		long bytes = Math.min(wanted, budget - spent);
+
+		if (bytes <= 0)
+			return 0;
+
+		spent += bytes;
+
+		return bytes;
+	}
+
+	private synchronized void refund(long bytes) {
+
+		spent -= bytes;
+	}
+
+	/**
+	 * Records how many bytes of its head a queued video holds on disk.
+	 */
+	private synchronized void hold(String url, long bytes) {
+
+		Long previous = held.put(url, bytes);
+
+		spent += bytes - (previous == null ? 0 : previous);
+	}
+
+	/**
+	 * Records the bytes a video holds after its prefetch, unless it left the
+	 * queue while it was fetched.
+	 */
+	private synchronized void update(String url, long bytes) {
+
+		if (held.containsKey(url))
+			hold(url, bytes);
+	}
+
+	/**
+	 * Gives the bytes a video held back to the budget.
+	 */
+	private synchronized void release(String url) {
+
+		Long previous = held.remove(url);
+
+		if (previous != null)
+			spent -= previous;
+	}
+
+	private class Task implements Runnable, Comparable<Task> {
+
+		private final String url;
+		private final int priority;
+		private final long generation, order;
+
+		Task(String url, int priority, long generation, long order) {
+
+			this.url = url;
+			this.priority = priority;
+			this.generation = generation;
+			this.order = order;
+		}
+
+		@Override
+		public int compareTo(Task other) {
+
+			if (priority != other.priority)
+				return priority < other.priority ? -1 : 1;
+
+			return order < other.order ? -1 : (order == other.order ? 0 : 1);
+		}
+
+		@Override
+		public void run() {
+
+			try {
+
+				if (generation != Prefetcher.this.generation)
+					return;
+
+				String filename = CacheUtils.getFilename(url);
+				// whatever an earlier prefetch or download left behind counts towards the head
+				long before = FileIO.getPartialLength(filename);
+
+				// nothing is held any more if the head was evicted
+				hold(url, Math.min(before, headBytes));
+
+				if (before >= headBytes)
+					return;
+
+				long reserved = reserve(headBytes - before);
+
+				if (reserved == 0) {
+					Log.i(TAG, "Prefetch budget used up, skipping " + url);
+					return;
+				}
+
+				long fetched = 0;
+				CacheRequest request = CacheUtils.requestHead(url, before + reserved);
+
+				if (request != null) {
+
+					String path = request.get();
+
+					if (!path.equals("")) {
+
+						// a partial file may have been sized up front, its marker knows how much is in it
+						long after = path.endsWith(FileIO.PARTIAL_EXTENSION) ? FileIO.getPartialLength(filename) : new File(path).length();
+						fetched = Math.max(0, after - before);
+					}
+				}
+
+				refund(reserved);
+
+				update(url, Math.min(before + fetched, headBytes));
+
+				Log.i(TAG, "Prefetched " + fetched + " bytes of " + url);
+
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package com.saul.power.mymediaplayer.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A stream over a window of a file.  Reads are positional reads on the file's
+ * channel, so several streams can read different parts of the same file and
+ * nothing beyond the caller's buffer is held in memory.
+ *
+ * @author Saul Howard
+ *
+ */
+public class RangeInputStream extends InputStream {
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long end;
+
+	private long position, mark;
+
+	/**
+	 * @param path the file to read
+	 * @param offset the first byte of the window
+	 * @param length the number of bytes in the window, -1 for the rest of the file
+	 */
+	public RangeInputStream(File path, long offset, long length) throws IOException {
+
+		file = new RandomAccessFile(path, "r");
+		channel = file.getChannel();
+
+		long size = channel.size();
+
+		if (offset < 0 || offset > size) {
+			file.close();
+			throw new IOException("Offset " + offset + " is outside of " + path + " (" + size + " bytes)");
+		}
+
+		position = offset;
+		mark = offset;
+		end = length < 0 ? size : Math.min(size, offset + length);
+	}
+
+	@Override
+	public int read() throws IOException {
+
+		byte[] single = new byte[1];
+
+		return read(single, 0, 1) == 1 ? single[0] & 0xff : -1;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int count) throws IOException {
+
+		if (position >= end)
+			return -1;
+
+		int length = (int) Math.min(count, end - position);
+		int read = channel.read(ByteBuffer.wrap(buffer, offset, length), position);
+
+		if (read > 0)
+			position += read;
+
+		return read;
+	}
+
+	@Override
+	public long skip(long count) {
+
+		long skipped = Math.max(0, Math.min(count, end - position));
+		position += skipped;
+
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+
+		return (int) Math.min(Integer.MAX_VALUE, end - position);
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readLimit) {
+		mark = position;
+	}
+
+	@Override
+	public synchronized void reset() {
+		position = mark;
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+}
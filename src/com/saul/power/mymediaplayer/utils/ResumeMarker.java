@@ -0,0 +1,109 @@
+package com.saul.power.mymediaplayer.utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Small record persisted next to a partially downloaded file so the
+ * download can be resumed with a Range request after the connection drops
+ * or the app is killed.
+ *
+ * @author Saul Howard
+ *
+ */
+class ResumeMarker {
+
+	private static final int VERSION = 4;
+
+	// ETag or Last-Modified value sent back to the server in If-Range
+	String validator;
+
+	// total length of the resource, -1 if the server did not tell us
+	long length = -1;
+	
+	// the partial file was sized up front and filled out of order, so its
+	// length says nothing about how much has been downloaded
+	boolean preallocated;
+	
+	// bytes of a preallocated file written in order from the start, -1 if it
+	// was filled out of order and has to start over
+	long written = -1;
+	
+	// the range size of a segmented download and the CRC32 of every range
+	// fetched so far in file order, -1 for one still to be fetched
+	long segmentSize;
+	long[] segments;
+
+	static ResumeMarker read(File file) {
+
+		if (!file.exists())
+			return null;
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(file));
+
+			int version = in.readInt();
+			
+			// markers from before preallocation, written and segments were added are read as they were
+			if (version > VERSION || version < 1)
+				return null;
+
+			ResumeMarker marker = new ResumeMarker();
+			marker.validator = in.readBoolean() ? in.readUTF() : null;
+			marker.length = in.readLong();
+			
+			if (version >= 2)
+				marker.preallocated = in.readBoolean();
+			
+			if (version >= 3)
+				marker.written = in.readLong();
+			
+			if (version >= 4 && in.readBoolean()) {
+				
+				marker.segmentSize = in.readLong();
+				marker.segments = new long[in.readInt()];
+				
+				for (int i = 0; i < marker.segments.length; i++)
+					marker.segments[i] = in.readLong();
+			}
+
+			return marker;
+
+		} catch (IOException e) {
+			return null;
+		} finally {
+			try {
+				if (in != null)
+					in.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	void write(File file) throws IOException {
+
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		try {
+			out.writeInt(VERSION);
+			out.writeBoolean(validator != null);
+			if (validator != null)
+				out.writeUTF(validator);
+			out.writeLong(length);
+			out.writeBoolean(preallocated);
+			out.writeLong(written);
+			out.writeBoolean(segments != null);
+			if (segments != null) {
+				out.writeLong(segmentSize);
+				out.writeInt(segments.length);
+				for (long segment : segments)
+					out.writeLong(segment);
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
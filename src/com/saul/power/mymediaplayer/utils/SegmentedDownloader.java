@@ -0,0 +1,443 @@
+package com.saul.power.mymediaplayer.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Downloads a file as a set of byte ranges fetched over several connections
+ * at once.  Each range is written at its own offset into a file that is sized
+ * up front.  Servers that don't support ranges, or files smaller than a single
+ * segment, fall back to a regular FileIO download.
+ *
+ * The number of connections starts low and adapts to the measured throughput,
+ * up to the configured concurrency.
+ *
+ * The resume marker records the checksum of every segment once it is on
+ * storage, so an interrupted download picks up with the segments it is missing
+ * as long as the server still has the same version of the file.
+ *
+ * @author Saul Howard
+ *
+ */
+public class SegmentedDownloader {
+
+	private static final String TAG = "SegmentedDownloader";
+
+	// how many times a single segment is attempted before the download fails
+	private static final int SEGMENT_ATTEMPTS = 2;
+
+	// the number of connections a download starts out with
+	private static final int INITIAL_CONNECTIONS = 2;
+
+	// how often a connection over the limit checks whether it may continue
+	private static final long IDLE_POLL = 100;
+
+	private final int concurrency;
+	private final long segmentSize;
+
+	/**
+	 * @param concurrency the most connections used in parallel
+	 * @param segmentSize the number of bytes requested per range
+	 */
+	public SegmentedDownloader(int concurrency, long segmentSize) {
+
+		if (concurrency < 1 || segmentSize < 1)
+			throw new IllegalArgumentException("concurrency and segmentSize must be positive");
+
+		this.concurrency = concurrency;
+		this.segmentSize = segmentSize;
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	public long getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * Downloads the link into the storage directory.
+	 *
+	 * @return the absolute path of the file or an empty string on failure
+	 */
+	public String download(String link, String filename) {
+
+		return download(link, filename, null);
+	}
+
+	/**
+	 * Downloads the link into the storage directory.
+	 *
+	 * @param validators filled in with the freshness headers of the response, may be null
+	 * @return the absolute path of the file or an empty string on failure
+	 */
+	public String download(String link, String filename, Validators validators) {
+
+		File dataDir = FileIO.getExternalDirectory();
+		File outputFile = new File(dataDir, filename);
+		File partFile = new File(dataDir, filename + FileIO.PARTIAL_EXTENSION);
+		File markerFile = new File(dataDir, filename + FileIO.RESUME_EXTENSION);
+
+		ExecutorService executor = null;
+		// handed back a segment at a time as they land on storage
+		AtomicLong reservation = new AtomicLong();
+
+		try {
+
+			ResumeMarker marker = probe(link, validators);
+
+			if (marker == null || marker.length <= segmentSize)
+				return FileIO.loadRemoteData(link, filename, validators);
+
+			Log.i(TAG, "Downloading " + link + " in " + segmentSize + " byte segments over " + concurrency + " connections");
+
+			ResumeMarker saved = ResumeMarker.read(markerFile);
+
+			if (canResume(saved, marker, partFile)) {
+
+				marker = saved;
+
+			} else {
+
+				// size the file up front so every segment can be written in place
+				partFile.delete();
+				RandomAccessFile file = new RandomAccessFile(partFile, "rw");
+				try {
+					file.setLength(marker.length);
+				} finally {
+					file.close();
+				}
+
+				marker.preallocated = true;
+				marker.segmentSize = segmentSize;
+				marker.segments = new long[(int) ((marker.length + segmentSize - 1) / segmentSize)];
+				Arrays.fill(marker.segments, -1);
+				marker.write(markerFile);
+			}
+
+			List<Segment> ordered = new ArrayList<Segment>();
+			Queue<Segment> segments = new ConcurrentLinkedQueue<Segment>();
+			long done = 0;
+
+			for (int i = 0; i < marker.segments.length; i++) {
+
+				long start = i * segmentSize;
+				long end = Math.min(start + segmentSize, marker.length) - 1;
+				Segment segment = new Segment(link, marker, markerFile, partFile, reservation, i, start, end);
+
+				ordered.add(segment);
+
+				if (marker.segments[i] < 0)
+					segments.add(segment);
+				else
+					done += end - start + 1;
+			}
+
+			if (done > 0)
+				Log.i(TAG, "Resuming " + link + " with " + (ordered.size() - segments.size()) + " of " + ordered.size() + " segments");
+
+			// refuse a download that can't fit before any of it is transferred
+			reservation.set(FileIO.reserveSpace(filename, marker.length - done));
+
+			DownloadScheduler.ConcurrencyLimit limit = new DownloadScheduler.ConcurrencyLimit(INITIAL_CONNECTIONS, concurrency);
+			boolean background = DownloadScheduler.isBackground();
+			DownloadProgress progress = DownloadProgress.current();
+
+			if (progress != null)
+				progress.onStart(marker.length, done);
+
+			executor = Executors.newFixedThreadPool(concurrency);
+			List<Future<Void>> connections = new ArrayList<Future<Void>>();
+
+			for (int i = 0; i < concurrency; i++)
+				connections.add(executor.submit(new Connection(i, segments, limit, background, progress)));
+
+			for (Future<Void> connection : connections)
+				connection.get();
+
+			// each segment hashed its own bytes, stitch them together in file order
+			if (validators != null) {
+
+				long checksum = 0;
+
+				for (Segment segment : ordered)
+					checksum = Checksums.combine(checksum, segment.checksum, segment.end - segment.start + 1);
+
+				validators.checksum = checksum;
+			}
+
+			return FileIO.completeDownload(partFile, markerFile, outputFile);
+
+		} catch (ExecutionException e) {
+			Log.e(TAG, "Segmented download failed: " + link, e.getCause());
+			return "";
+		} catch (Exception e) {
+			Log.e(TAG, "Segmented download failed: " + link, e);
+			return "";
+		} finally {
+			if (executor != null)
+				executor.shutdownNow();
+
+			FileIO.releaseSpace(reservation.getAndSet(0));
+		}
+	}
+
+	/**
+	 * @return whether the partial file holds segments of the same version of
+	 * the resource, fetched in segments of the same size
+	 */
+	private boolean canResume(ResumeMarker saved, ResumeMarker marker, File partFile) {
+
+		return saved != null && saved.segments != null && saved.segmentSize == segmentSize
+				&& saved.length == marker.length && marker.validator != null
+				&& marker.validator.equals(saved.validator) && partFile.length() == marker.length;
+	}
+
+	/**
+	 * Requests the first byte of the resource to learn its length, its validator
+	 * and whether the server honors ranges at all.
+	 *
+	 * @return the details for the download or null if ranges are not supported
+	 */
+	private ResumeMarker probe(String link, Validators validators) throws IOException {
+
+		HttpURLConnection connection = Connections.open(link);
+
+		try {
+
+			connection.setRequestProperty("Range", "bytes=0-0");
+			if (Connections.connect(connection) != HttpURLConnection.HTTP_PARTIAL)
+				return null;
+
+			long[] range = FileIO.parseContentRange(connection.getHeaderField("Content-Range"));
+
+			if (range == null || range[1] < 0)
+				return null;
+
+			if (validators != null)
+				validators.update(connection);
+
+			ResumeMarker marker = new ResumeMarker();
+			marker.validator = FileIO.getValidator(connection);
+			marker.length = range[1];
+
+			return marker;
+
+		} finally {
+			Connections.release(connection);
+		}
+	}
+
+	/**
+	 * Works through the queue of segments for as long as the limit allows this
+	 * connection to run.
+	 */
+	private static class Connection implements Callable<Void> {
+
+		private final int index;
+		private final Queue<Segment> segments;
+		private final DownloadScheduler.ConcurrencyLimit limit;
+		private final boolean background;
+		private final DownloadProgress progress;
+
+		Connection(int index, Queue<Segment> segments, DownloadScheduler.ConcurrencyLimit limit, boolean background, DownloadProgress progress) {
+
+			this.index = index;
+			this.segments = segments;
+			this.limit = limit;
+			this.background = background;
+			this.progress = progress;
+		}
+
+		@Override
+		public Void call() throws Exception {
+
+			DownloadScheduler.setBackground(background);
+			DownloadProgress.attach(progress);
+
+			try {
+
+				while (!segments.isEmpty()) {
+
+					if (index >= limit.get()) {
+						Thread.sleep(IDLE_POLL);
+						continue;
+					}
+
+					Segment segment = segments.poll();
+
+					if (segment == null)
+						break;
+
+					try {
+						segment.call();
+					} catch (IOException e) {
+						// stop the other connections, the download has failed
+						segments.clear();
+						limit.onFailure();
+						throw e;
+					}
+
+					limit.onSegment(segment.end - segment.start + 1);
+				}
+
+				return null;
+
+			} finally {
+				DownloadScheduler.setBackground(false);
+				DownloadProgress.attach(null);
+			}
+		}
+	}
+
+	/**
+	 * Fetches a single byte range and writes it at its offset in the file.
+	 */
+	private static class Segment implements Callable<Void> {
+
+		private final String link, validator;
+		private final ResumeMarker marker;
+		private final File markerFile, file;
+		private final AtomicLong reservation;
+		private final int index;
+		private final long start, end;
+
+		// CRC32 of the segment, set once it has been written
+		private volatile long checksum;
+
+		Segment(String link, ResumeMarker marker, File markerFile, File file, AtomicLong reservation, int index, long start, long end) {
+
+			this.link = link;
+			this.validator = marker.validator;
+			this.marker = marker;
+			this.markerFile = markerFile;
+			this.file = file;
+			this.reservation = reservation;
+			this.index = index;
+			this.start = start;
+			this.end = end;
+			this.checksum = marker.segments[index];
+		}
+
+		@Override
+		public Void call() throws Exception {
+
+			IOException failure = null;
+
+			for (int attempt = 0; attempt < SEGMENT_ATTEMPTS; attempt++) {
+
+				try {
+					fetch();
+					return null;
+				} catch (IOException e) {
+					Log.w(TAG, "Segment " + start + "-" + end + " failed, attempt " + (attempt + 1), e);
+					failure = e;
+				}
+
+				if (Thread.currentThread().isInterrupted())
+					break;
+
+				DownloadProgress progress = DownloadProgress.current();
+
+				if (progress != null && attempt + 1 < SEGMENT_ATTEMPTS)
+					progress.onRetry();
+			}
+
+			throw failure;
+		}
+
+		private void fetch() throws IOException {
+
+			HttpURLConnection connection = Connections.open(link);
+			RandomAccessFile output = null;
+			InputStream input = null;
+
+			try {
+
+				connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+
+				// a changed resource comes back as a 200 instead of mixing versions
+				if (validator != null)
+					connection.setRequestProperty("If-Range", validator);
+
+				int code = Connections.connect(connection);
+
+				long[] range = FileIO.parseContentRange(connection.getHeaderField("Content-Range"));
+
+				if (code != HttpURLConnection.HTTP_PARTIAL || range == null || range[0] != start)
+					throw new IOException("Server did not honor range " + start + "-" + end);
+
+				output = new RandomAccessFile(file, "rw");
+				input = connection.getInputStream();
+
+				// an interrupt closes the channel, which cancels the segment
+				CRC32 crc = new CRC32();
+				long remaining = end - start + 1;
+				remaining -= FileIO.transfer(input, output.getChannel(), start, remaining, crc);
+
+				// whatever the policy, the marker may only count segments that are on storage
+				output.getChannel().force(false);
+
+				if (remaining > 0)
+					throw new IOException("Segment " + start + "-" + end + " ended " + remaining + " bytes short");
+
+				checksum = crc.getValue();
+
+				record();
+
+			} finally {
+
+				if (output != null)
+					output.close();
+
+				Connections.release(connection, input);
+			}
+		}
+
+		/**
+		 * Marks the segment as fetched so a resumed download skips it.  The
+		 * bytes are already on storage, so a marker that can't be written only
+		 * costs fetching the segment again.
+		 */
+		private void record() {
+
+			synchronized (marker) {
+
+				marker.segments[index] = checksum;
+
+				try {
+					marker.write(markerFile);
+				} catch (IOException e) {
+					Log.w(TAG, "Could not record segment " + start + "-" + end, e);
+				}
+			}
+
+			// written bytes show up in the free space, they needn't be reserved as well
+			long bytes = end - start + 1, released;
+
+			do {
+				released = reservation.get();
+			} while (!reservation.compareAndSet(released, released - Math.min(bytes, released)));
+
+			FileIO.releaseSpace(Math.min(bytes, released));
+		}
+	}
+}
@@ -0,0 +1,278 @@
+package com.saul.power.mymediaplayer.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Downloads a video into a SparseFile, one run of missing blocks per range
+ * request.  Every block is marked present as soon as it is written so it can
+ * be read while the rest of the video arrives, and blocks cached or claimed by
+ * anyone else are skipped.  Once every block is present the file is moved into
+ * place like any other download.  Servers that don't support ranges fall back
+ * to a regular FileIO download.
+ *
+ * A priority hint on the file moves the download to the hinted block once the
+ * block it is writing is done.  It carries on in order from there and comes
+ * back for the blocks it skipped at the end.
+ *
+ * @author Saul Howard
+ *
+ */
+class SparseDownloader {
+
+	private static final String TAG = "SparseDownloader";
+
+	// the most blocks asked for in one request
+	private static final int MAX_RUN = 16;
+
+	// how many requests in a row may fail before the download does
+	private static final int ATTEMPTS = 3;
+
+	// how often the download checks back while only claimed blocks are missing
+	private static final long CLAIM_POLL = 100;
+
+	private SparseDownloader() {}
+
+	/**
+	 * Downloads the blocks of the link that aren't cached yet.
+	 *
+	 * @param key the cache key of the video, its partial size is reported to the cache as it grows
+	 * @param validators filled in with the freshness headers and checksum of the video, may be null
+	 * @return the absolute path of the complete file or an empty string on failure
+	 */
+	static String download(String link, String key, String filename, Validators validators) {
+
+		File dataDir = FileIO.getExternalDirectory();
+		SparseFile file = SparseFile.open(dataDir, filename);
+		long reservation = 0;
+
+		try {
+
+			if (!probe(link, file, validators)) {
+
+				Log.i(TAG, link + " doesn't support ranges, downloading it whole");
+				SparseFile.delete(dataDir, filename);
+
+				return FileIO.loadRemoteData(link, filename, validators);
+			}
+
+			adoptPartial(dataDir, file);
+
+			// refuse a download that can't fit before any of it is transferred
+			reservation = FileIO.reserveSpace(filename, file.getLength() - file.getPresentBytes());
+
+			DownloadProgress progress = DownloadProgress.current();
+
+			if (progress != null)
+				progress.onStart(file.getLength(), file.getPresentBytes());
+
+			CacheUtils.trackPartial(key, link, file);
+
+			int next = 0, failures = 0;
+
+			while (!file.isComplete()) {
+
+				int hinted = file.takePriority();
+
+				if (hinted >= 0) {
+					Log.i(TAG, "Moving the download of " + filename + " to block " + hinted);
+					next = hinted;
+				}
+
+				int from = file.nextUnclaimed(next);
+
+				// the rest is being fetched for the player, it may give some of it up
+				if (from < 0) {
+					Thread.sleep(CLAIM_POLL);
+					continue;
+				}
+
+				try {
+
+					next = fetch(link, file, from);
+
+					if (next < 0) {
+
+						// the video changed on the server, probing again starts it over
+						next = 0;
+
+						if (!probe(link, file, validators))
+							throw new IOException(link + " stopped honoring ranges");
+					}
+
+					failures = 0;
+
+				} catch (IOException e) {
+
+					if (Thread.currentThread().isInterrupted() || ++failures >= ATTEMPTS)
+						throw e;
+
+					Log.w(TAG, "Blocks from " + from + " of " + filename + " failed, attempt " + failures, e);
+
+					if (progress != null)
+						progress.onRetry();
+
+					next = from;
+				}
+
+				CacheUtils.trackPartial(key, link, file);
+
+				// written blocks show up in the free space, they needn't be reserved as well
+				long unwritten = file.getLength() - file.getPresentBytes();
+
+				if (unwritten < reservation) {
+					FileIO.releaseSpace(reservation - unwritten);
+					reservation = unwritten;
+				}
+			}
+
+			if (validators != null)
+				validators.checksum = file.checksum();
+
+			return file.commit(new File(dataDir, filename));
+
+		} catch (Exception e) {
+			Log.e(TAG, "Sparse download failed: " + link, e);
+			return "";
+		} finally {
+			FileIO.releaseSpace(reservation);
+			file.release();
+		}
+	}
+
+	/**
+	 * Requests the first byte of the video to learn its length and validator.
+	 * Blocks cached from a different version of the video are dropped.
+	 *
+	 * @return false if the server doesn't support ranges
+	 */
+	private static boolean probe(String link, SparseFile file, Validators validators) throws IOException {
+
+		HttpURLConnection connection = Connections.open(link);
+
+		try {
+
+			connection.setRequestProperty("Range", "bytes=0-0");
+			if (Connections.connect(connection) != HttpURLConnection.HTTP_PARTIAL)
+				return false;
+
+			long[] range = FileIO.parseContentRange(connection.getHeaderField("Content-Range"));
+
+			if (range == null || range[1] < 0)
+				return false;
+
+			if (validators != null)
+				validators.update(connection);
+
+			file.initialize(range[1], FileIO.getValidator(connection));
+
+			return true;
+
+		} finally {
+			Connections.release(connection);
+		}
+	}
+
+	/**
+	 * Picks up the start of the video from an earlier sequential download or prefetch.
+	 */
+	private static void adoptPartial(File dataDir, SparseFile file) throws IOException {
+
+		File partFile = new File(dataDir, file.filename + FileIO.PARTIAL_EXTENSION);
+		File markerFile = new File(dataDir, file.filename + FileIO.RESUME_EXTENSION);
+
+		ResumeMarker marker = ResumeMarker.read(markerFile);
+
+		if (marker == null)
+			return;
+
+		// a preallocated partial holds what was written from the start, if it was written in order
+		long written = marker.preallocated ? marker.written : partFile.length();
+
+		boolean matches = written >= 0 && marker.length == file.getLength()
+				&& marker.validator != null && marker.validator.equals(file.getValidator());
+
+		if (matches && file.getPresentBytes() == 0 && partFile.exists())
+			file.adopt(partFile, written);
+
+		partFile.delete();
+		markerFile.delete();
+	}
+
+	/**
+	 * Fetches the run of missing blocks starting at the given one.  The run is
+	 * cut short when the download is asked to move elsewhere.
+	 *
+	 * @return the block after the last one written, or -1 if the video changed on the server
+	 */
+	private static int fetch(String link, SparseFile file, int first) throws IOException {
+
+		int blocks = file.getBlockCount();
+		int last = first;
+
+		while (last + 1 < blocks && last + 1 - first < MAX_RUN && !file.isPresent(last + 1) && !file.isClaimed(last + 1))
+			last++;
+
+		long start = SparseFile.offsetOf(first);
+		long end = SparseFile.offsetOf(last) + file.lengthOf(last) - 1;
+
+		HttpURLConnection connection = Connections.open(link);
+		InputStream input = null;
+
+		try {
+
+			connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+
+			// a changed video comes back whole instead of mixing versions
+			if (file.getValidator() != null)
+				connection.setRequestProperty("If-Range", file.getValidator());
+
+			int code = Connections.connect(connection);
+
+			if (code == HttpURLConnection.HTTP_OK)
+				return -1;
+
+			long[] range = FileIO.parseContentRange(connection.getHeaderField("Content-Range"));
+
+			if (code != HttpURLConnection.HTTP_PARTIAL || range == null || range[0] != start)
+				throw new IOException("Server did not honor range " + start + "-" + end);
+
+			input = connection.getInputStream();
+
+			for (int block = first; block <= last; block++) {
+
+				if (block > first && file.hasPriority())
+					return block;
+
+				file.setCursor(block);
+
+				// an interrupt closes the channel, which cancels the download
+				FileChannel channel = file.channel();
+				CRC32 crc = new CRC32();
+				int length = file.lengthOf(block);
+
+				long written = FileIO.transfer(input, channel, SparseFile.offsetOf(block), length, crc);
+
+				if (written < length)
+					throw new IOException("Block " + block + " of " + file.filename + " ended " + (length - written) + " bytes short");
+
+				file.markPresent(block, crc.getValue());
+			}
+
+			return last + 1;
+
+		} finally {
+
+			file.setCursor(-1);
+
+			// a run cut short has too much left to drain and loses its connection
+			Connections.release(connection, input);
+		}
+	}
+}
@@ -0,0 +1,698 @@
+package com.saul.power.mymediaplayer.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * A video that is only partly cached, stored as fixed size blocks.  The bytes
+ * live at their own offsets in a data file and a map next to it records which
+ * blocks are present, along with the CRC32 of each.  Any range of the video can
+ * be cached and read back on its own, and blocks can be dropped again to free
+ * space.  Once every block is present the data file becomes the cached file.
+ *
+ * One instance is shared by everyone using the same file, see open, and it
+ * stays open until the last of them calls release.  The cache leaves a file
+ * that is open alone, so blocks are never evicted under a writer.  Readers
+ * can steer the download: a priority hint moves it to the block playback needs
+ * next, and blocks claimed by someone fetching them for a request are left to
+ * them.
+ *
+ * @author Saul Howard
+ *
+ */
+public class SparseFile {
+
+	private static final String TAG = "SparseFile";
+
+	public static final int BLOCK_SIZE = 256 * 1024;
+
+	// kept when the tail of a partly cached video is evicted, so it still starts straight away
+	public static final long HEAD_BYTES = 8L * BLOCK_SIZE;
+
+	public static final String DATA_EXTENSION = ".sparse";
+	public static final String MAP_EXTENSION = ".blocks";
+
+	private static final int MAGIC = 0x4d4d5042;
+	private static final int VERSION = 1;
+
+	// the map is written after this many new blocks, a crash only loses their presence
+	private static final int SAVE_INTERVAL = 8;
+
+	private static final Map<String, SparseFile> open = new HashMap<String, SparseFile>();
+
+	public final String filename;
+
+	private final File dataFile, mapFile;
+
+	private RandomAccessFile data;
+
+	private long length = -1;
+	private String validator;
+
+	private BitSet present = new BitSet();
+	private int[] crcs = new int[0];
+	private int count, unsaved;
+
+	// set once the data file has been renamed into place or deleted, or everyone released it
+	private boolean closed;
+
+	// the number of open calls not released yet, guarded by the open map
+	private int references;
+
+	// the block the download should move to next, -1 for none
+	private int priority = -1;
+
+	// the block the download is writing, -1 while it isn't writing one
+	private int cursor = -1;
+
+	// blocks being fetched for a request, the download skips them
+	private final BitSet claimed = new BitSet();
+
+	private SparseFile(File directory, String filename) {
+
+		this.filename = filename;
+		this.dataFile = new File(directory, filename + DATA_EXTENSION);
+		this.mapFile = new File(directory, filename + MAP_EXTENSION);
+	}
+
+	/**
+	 * Returns the sparse file for the filename, reading its map if it has one.
+	 * Every call has to be paired with a call to release.
+	 */
+	public static SparseFile open(File directory, String filename) {
+
+		synchronized (open) {
+
+			SparseFile file = open.get(filename);
+
+			if (file == null) {
+				file = new SparseFile(directory, filename);
+				file.load();
+				open.put(filename, file);
+			}
+
+			file.references++;
+
+			return file;
+		}
+	}
+
+	/**
+	 * Gives back a file returned by open.  The last release saves the map and
+	 * closes the data file, later calls to open read them again.
+	 */
+	public void release() {
+
+		synchronized (open) {
+
+			if (--references > 0)
+				return;
+
+			// committed or deleted meanwhile, and maybe opened again since
+			if (open.get(filename) == this)
+				open.remove(filename);
+		}
+
+		synchronized (this) {
+
+			if (unsaved > 0 && !closed) {
+				try {
+					save();
+				} catch (IOException e) {
+					Log.w(TAG, "Could not save the block map of " + filename, e);
+				}
+			}
+
+			closeData();
+			closed = true;
+		}
+	}
+
+	/**
+	 * @return true while someone has the file open
+	 */
+	public static boolean isOpen(String filename) {
+
+		synchronized (open) {
+			return open.containsKey(filename);
+		}
+	}
+
+	/**
+	 * Drops the blocks past the first keepBytes of a file no one has open.
+	 *
+	 * @return the number of cached bytes freed, -1 if the file is open and was left alone
+	 */
+	static long evictTail(File directory, String filename, long keepBytes) throws IOException {
+
+		// holding the map keeps anyone from opening the file meanwhile
+		synchronized (open) {
+
+			if (open.containsKey(filename))
+				return -1;
+
+			SparseFile file = new SparseFile(directory, filename);
+			file.load();
+
+			try {
+				return file.evictTail(keepBytes);
+			} finally {
+				file.close(false);
+			}
+		}
+	}
+
+	/**
+	 * @return true if some of the file is cached as blocks
+	 */
+	public static boolean exists(File directory, String filename) {
+
+		synchronized (open) {
+			if (open.containsKey(filename))
+				return true;
+		}
+
+		return new File(directory, filename + MAP_EXTENSION).exists();
+	}
+
+	/**
+	 * Deletes the blocks of the file, if there are any.
+	 */
+	public static void delete(File directory, String filename) {
+
+		SparseFile file;
+
+		synchronized (open) {
+			file = open.remove(filename);
+		}
+
+		if (file != null) {
+			file.close(true);
+			return;
+		}
+
+		new File(directory, filename + DATA_EXTENSION).delete();
+		new File(directory, filename + MAP_EXTENSION).delete();
+	}
+
+	/**
+	 * @return the length of the video or -1 until it is known
+	 */
+	public synchronized long getLength() {
+		return length;
+	}
+
+	public synchronized String getValidator() {
+		return validator;
+	}
+
+	public synchronized int getBlockCount() {
+
+		return length < 0 ? 0 : (int) ((length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+	}
+
+	public synchronized boolean isComplete() {
+
+		return length >= 0 && count == getBlockCount();
+	}
+
+	/**
+	 * @return the number of bytes cached
+	 */
+	public synchronized long getPresentBytes() {
+
+		if (count == 0)
+			return 0;
+
+		long bytes = (long) count * BLOCK_SIZE;
+
+		// the last block is usually short
+		int last = getBlockCount() - 1;
+
+		if (present.get(last))
+			bytes -= (long) (last + 1) * BLOCK_SIZE - length;
+
+		return bytes;
+	}
+
+	/**
+	 * @return true once the file was moved into place or deleted, it can't be used any more
+	 */
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	public synchronized boolean isPresent(int block) {
+
+		return present.get(block);
+	}
+
+	/**
+	 * @return the number of bytes that can be read from the position without a
+	 * gap, 0 once the file was moved into place or deleted
+	 */
+	public synchronized long available(long position) {
+
+		if (closed || length < 0 || position >= length)
+			return 0;
+
+		int block = (int) (position / BLOCK_SIZE);
+		int missing = present.nextClearBit(block);
+
+		return Math.min(length, (long) missing * BLOCK_SIZE) - position;
+	}
+
+	/**
+	 * @return the first block at or after the given one that is neither
+	 * present nor claimed, wrapping around to the start, or -1 if there is none
+	 */
+	public synchronized int nextUnclaimed(int from) {
+
+		int blocks = getBlockCount();
+
+		if (length < 0 || count == blocks)
+			return -1;
+
+		from = Math.max(0, Math.min(from, blocks));
+
+		int block = nextUnclaimed(from, blocks);
+
+		return block >= 0 ? block : nextUnclaimed(0, from);
+	}
+
+	private int nextUnclaimed(int from, int to) {
+
+		for (int block = present.nextClearBit(from); block < to; block = present.nextClearBit(block + 1)) {
+			if (!claimed.get(block))
+				return block;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @return the offset of the first present byte after the gap at the position, or the length
+	 */
+	public synchronized long gapEnd(long position) {
+
+		int block = present.nextSetBit((int) (position / BLOCK_SIZE));
+
+		return block < 0 || block >= getBlockCount() ? length : offsetOf(block);
+	}
+
+	/**
+	 * Asks the download to continue from the block holding the offset, as soon
+	 * as it has finished the block it is writing.
+	 */
+	public synchronized void prioritize(long offset) {
+
+		if (length < 0 || offset < 0 || offset >= length)
+			return;
+
+		priority = (int) (offset / BLOCK_SIZE);
+	}
+
+	/**
+	 * @return the block the download was asked to move to, -1 if it wasn't
+	 */
+	synchronized int takePriority() {
+
+		int block = priority;
+		priority = -1;
+
+		return block;
+	}
+
+	synchronized boolean hasPriority() {
+
+		return priority >= 0;
+	}
+
+	/**
+	 * @return the block the download is writing, -1 if it isn't writing one
+	 */
+	public synchronized int getCursor() {
+		return cursor;
+	}
+
+	synchronized void setCursor(int block) {
+
+		cursor = block;
+	}
+
+	/**
+	 * Marks blocks as being fetched by the caller so the download moves on past them.
+	 */
+	synchronized void claim(int first, int last) {
+
+		if (first <= last)
+			claimed.set(first, last + 1);
+	}
+
+	synchronized void release(int first, int last) {
+
+		if (first <= last)
+			claimed.clear(first, last + 1);
+	}
+
+	synchronized boolean isClaimed(int block) {
+
+		return claimed.get(block);
+	}
+
+	/**
+	 * Sets the length and validator of the video.  Blocks from a different
+	 * version of the video are thrown away.
+	 *
+	 * @return true if the blocks already cached can be kept
+	 */
+	public synchronized boolean initialize(long totalLength, String currentValidator) throws IOException {
+
+		boolean same = length == totalLength && (validator == null ? currentValidator == null : validator.equals(currentValidator));
+
+		if (same && count > 0)
+			return true;
+
+		if (count > 0)
+			Log.i(TAG, filename + " changed on the server, dropping " + count + " blocks");
+
+		length = totalLength;
+		validator = currentValidator;
+		present = new BitSet(getBlockCount());
+		crcs = new int[getBlockCount()];
+		count = 0;
+
+		channel().truncate(0);
+		save();
+
+		return false;
+	}
+
+	/**
+	 * Takes over a partial download that holds the start of the video.  Only
+	 * whole blocks are kept.
+	 */
+	synchronized void adopt(File partFile, long partLength) throws IOException {
+
+		closeData();
+
+		dataFile.delete();
+
+		if (!partFile.renameTo(dataFile))
+			throw new IOException("Could not adopt " + partFile);
+
+		int blocks = (int) Math.min(getBlockCount(), partLength / BLOCK_SIZE);
+
+		// a partial that ends exactly at the end of the video holds the short last block as well
+		if (partLength >= length)
+			blocks = getBlockCount();
+
+		for (int block = 0; block < blocks; block++) {
+
+			long start = (long) block * BLOCK_SIZE;
+			CRC32 crc = new CRC32();
+
+			Checksums.update(crc, dataFile, start, Math.min(BLOCK_SIZE, length - start));
+
+			present.set(block);
+			crcs[block] = (int) crc.getValue();
+		}
+
+		count = blocks;
+		save();
+
+		Log.i(TAG, "Adopted " + blocks + " blocks of " + filename + " from a partial download");
+	}
+
+	/**
+	 * Records that a block was written in full.
+	 *
+	 * @param crc the CRC32 of the block's bytes
+	 */
+	public synchronized void markPresent(int block, long crc) throws IOException {
+
+		// the video may have changed on the server while the block was written
+		if (closed || block >= getBlockCount() || present.get(block))
+			return;
+
+		present.set(block);
+		crcs[block] = (int) crc;
+		count++;
+
+		if (++unsaved >= SAVE_INTERVAL || count == getBlockCount())
+			save();
+	}
+
+	/**
+	 * @return the offset of the block's first byte
+	 */
+	public static long offsetOf(int block) {
+
+		return (long) block * BLOCK_SIZE;
+	}
+
+	/**
+	 * @return the number of bytes in the block, the last block may be short
+	 */
+	public synchronized int lengthOf(int block) {
+
+		return (int) Math.min(BLOCK_SIZE, length - offsetOf(block));
+	}
+
+	/**
+	 * Reads cached bytes at the position.
+	 *
+	 * @return the number of bytes read, -1 if the file was committed or deleted meanwhile
+	 */
+	public int read(long position, ByteBuffer buffer) throws IOException {
+
+		FileChannel channel;
+
+		synchronized (this) {
+
+			if (closed)
+				return -1;
+
+			channel = channel();
+		}
+
+		return channel.read(buffer, position);
+	}
+
+	/**
+	 * @return the channel to write blocks to, positional writes may be made from any thread
+	 */
+	synchronized FileChannel channel() throws IOException {
+
+		if (closed)
+			throw new IOException(filename + " is no longer sparse");
+
+		// an interrupted transfer closes the channel it was writing to
+		if (data != null && !data.getChannel().isOpen())
+			closeData();
+
+		if (data == null)
+			data = new RandomAccessFile(dataFile, "rw");
+
+		return data.getChannel();
+	}
+
+	/**
+	 * Drops the blocks past the first keepBytes of the video.
+	 *
+	 * @return the number of cached bytes freed
+	 */
+	private synchronized long evictTail(long keepBytes) throws IOException {
+
+		if (closed)
+			return 0;
+
+		long before = getPresentBytes();
+		int keep = (int) Math.min(getBlockCount(), (keepBytes + BLOCK_SIZE - 1) / BLOCK_SIZE);
+
+		for (int block = present.nextSetBit(keep); block >= 0; block = present.nextSetBit(block + 1)) {
+			present.clear(block);
+			crcs[block] = 0;
+			count--;
+		}
+
+		// give the space back, later blocks are written into a hole again
+		if (channel().size() > offsetOf(keep))
+			channel().truncate(offsetOf(keep));
+
+		save();
+
+		return before - getPresentBytes();
+	}
+
+	/**
+	 * @return the CRC32 of the whole file, put together from the blocks
+	 */
+	public synchronized long checksum() {
+
+		long checksum = 0;
+
+		for (int block = 0; block < getBlockCount(); block++)
+			checksum = Checksums.combine(checksum, crcs[block] & 0xffffffffL, lengthOf(block));
+
+		return checksum;
+	}
+
+	/**
+	 * Moves the complete file into place and forgets about its blocks.
+	 *
+	 * @return the absolute path of the file
+	 */
+	public String commit(File target) throws IOException {
+
+		synchronized (open) {
+
+			synchronized (this) {
+
+				if (!isComplete())
+					throw new IOException(filename + " is missing " + (getBlockCount() - count) + " blocks");
+
+				FileIO.sync(channel());
+				closeData();
+
+				FileIO.commit(dataFile, target);
+				mapFile.delete();
+
+				closed = true;
+				open.remove(filename);
+			}
+		}
+
+		return target.getAbsolutePath();
+	}
+
+	private synchronized void close(boolean delete) {
+
+		closeData();
+		closed = true;
+
+		if (delete) {
+			dataFile.delete();
+			mapFile.delete();
+		}
+	}
+
+	private void closeData() {
+
+		if (data == null)
+			return;
+
+		try {
+			data.close();
+		} catch (IOException e) {}
+
+		data = null;
+	}
+
+	private void load() {
+
+		if (!mapFile.exists())
+			return;
+
+		DataInputStream in = null;
+
+		try {
+
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(mapFile)));
+
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != BLOCK_SIZE)
+				throw new IOException("Unknown block map format");
+
+			length = in.readLong();
+			validator = in.readBoolean() ? in.readUTF() : null;
+
+			int blocks = in.readInt();
+
+			present = new BitSet(blocks);
+			crcs = new int[blocks];
+
+			for (int block = 0; block < blocks; block++) {
+
+				crcs[block] = in.readInt();
+
+				if (in.readBoolean()) {
+					present.set(block);
+					count++;
+				}
+			}
+
+		} catch (IOException e) {
+
+			Log.w(TAG, "Discarding unreadable block map of " + filename, e);
+
+			length = -1;
+			validator = null;
+			present = new BitSet();
+			crcs = new int[0];
+			count = 0;
+
+		} finally {
+			try {
+				if (in != null)
+					in.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	/**
+	 * Writes the map, after the blocks it lists are on storage.
+	 */
+	private void save() throws IOException {
+
+		unsaved = 0;
+
+		if (data != null)
+			FileIO.sync(data.getChannel());
+
+		File temp = new File(mapFile.getPath() + FileIO.TEMP_EXTENSION);
+		FileOutputStream stream = new FileOutputStream(temp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+
+		try {
+
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(BLOCK_SIZE);
+			out.writeLong(length);
+			out.writeBoolean(validator != null);
+			if (validator != null)
+				out.writeUTF(validator);
+
+			int blocks = getBlockCount();
+			out.writeInt(blocks);
+
+			for (int block = 0; block < blocks; block++) {
+				out.writeInt(crcs[block]);
+				out.writeBoolean(present.get(block));
+			}
+
+			out.flush();
+			FileIO.sync(stream.getChannel());
+
+		} finally {
+			out.close();
+		}
+
+		FileIO.commit(temp, mapFile);
+	}
+}
@@ -0,0 +1,99 @@
+package com.saul.power.mymediaplayer.utils;
+
+import java.net.HttpURLConnection;
+
+/**
+ * The freshness information a server sent along with a resource: the
+ * validators used for conditional requests and the time the cached copy
+ * expires according to Cache-Control or Expires.
+ *
+ * @author Saul Howard
+ *
+ */
+public class Validators {
+
+	// the server gave no freshness information, the copy is used until refreshed
+	public static final long NEVER = 0;
+
+	// the copy has to be revalidated every time it is used
+	public static final long ALWAYS = 1;
+
+	public String etag, lastModified;
+
+	// milliseconds since the epoch, or NEVER/ALWAYS
+	public long expires = NEVER;
+	
+	// not sent by the server: the CRC32 of the body, worked out by the download that wrote it
+	public long checksum = Checksums.UNKNOWN;
+
+	/**
+	 * Reads the validators and freshness lifetime from a response.
+	 */
+	public static Validators from(HttpURLConnection connection) {
+
+		Validators validators = new Validators();
+		validators.update(connection);
+
+		return validators;
+	}
+
+	/**
+	 * Takes any validators present in the response, keeping the current ones
+	 * otherwise.  A 304 only has to repeat the headers that changed.
+	 */
+	void update(HttpURLConnection connection) {
+
+		String etag = connection.getHeaderField("ETag");
+		String lastModified = connection.getHeaderField("Last-Modified");
+
+		if (etag != null)
+			this.etag = etag;
+		if (lastModified != null)
+			this.lastModified = lastModified;
+
+		long now = System.currentTimeMillis();
+		String cacheControl = connection.getHeaderField("Cache-Control");
+
+		if (cacheControl != null) {
+
+			for (String directive : cacheControl.toLowerCase().split(",")) {
+
+				directive = directive.trim();
+
+				if (directive.equals("no-cache") || directive.equals("no-store")) {
+
+					expires = ALWAYS;
+					return;
+
+				} else if (directive.startsWith("max-age=")) {
+
+					try {
+
+						long maxAge = Long.parseLong(directive.substring(8).trim());
+						long age = Math.max(0, connection.getHeaderFieldInt("Age", 0));
+
+						expires = Math.max(ALWAYS, now + (maxAge - age) * 1000);
+						return;
+
+					} catch (NumberFormatException e) {}
+				}
+			}
+		}
+
+		long date = connection.getHeaderFieldDate("Expires", NEVER);
+
+		if (date != NEVER)
+			expires = Math.max(ALWAYS, date);
+	}
+
+	void copyTo(CacheEntry entry) {
+
+		entry.etag = etag;
+		entry.lastModified = lastModified;
+		entry.expires = expires;
+		
+		// a revalidation has no body and keeps the checksum of the file on disk
+		if (checksum != Checksums.UNKNOWN)
+			entry.checksum = checksum;
+	}
+}